@@ -3,16 +3,18 @@ package cn.jystudio.bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.util.Log;
+import cn.jystudio.bluetooth.transport.PrinterTransport;
+import cn.jystudio.bluetooth.transport.RfcommTransport;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
-import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
@@ -26,15 +28,48 @@ public class BluetoothService {
 
     // Name for the SDP record when creating server socket
     private static final String NAME = "BTPrinter";
-    //UUID must be this
-    // Unique UUID for this application
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // How long the writer waits for more commands before flushing a partial frame
+    private static final long WRITE_LINGER_NANOS = 5 * 1000 * 1000L;
+
+    // Connection pool defaults
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+    private static final long IDLE_CHECK_INTERVAL_MS = 10 * 1000L;
+
+    // Largest job the writer keeps to resend after a reconnect when spooling
+    private static final int RESEND_LIMIT = 4 * 1024 * 1024;
+
+    // Auto-reconnect backoff and default give-up time
+    private static final long RECONNECT_MIN_BACKOFF_MS = 250;
+    private static final long RECONNECT_MAX_BACKOFF_MS = 8000;
+    private static final long DEFAULT_RECONNECT_TIMEOUT_MS = 60 * 1000L;
 
     // Member fields
     private BluetoothAdapter mAdapter;
 
-    private ConnectedThread mConnectedThread;
+    // open connections keyed by printer address, least recently used first
+    private final LinkedHashMap<String, ConnectedThread> mConnections =
+            new LinkedHashMap<String, ConnectedThread>(8, 0.75f, true);
+    // the printer that calls without an address go to: the one connected last
+    private String mDefaultAddress;
+    // state of the default printer's connection
     private int mState;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private Timer mIdleTimer;
+    private volatile boolean mAutoReconnect = true;
+    private volatile long mReconnectTimeoutMs = DEFAULT_RECONNECT_TIMEOUT_MS;
+    // where connections journal their jobs, null to not spool
+    private volatile File mSpoolDir;
+    // open journals by printer address, shared with a replaced connection still winding down; guarded by this
+    private final Map<String, SharedSpool> mSpools = new HashMap<String, SharedSpool>();
+    // how large jobs are sent, by printer address and for all others
+    private final Map<String, ChunkedSender.Options> mPrinterTransmitOptions =
+            new ConcurrentHashMap<String, ChunkedSender.Options>();
+    private volatile ChunkedSender.Options mTransmitOptions = ChunkedSender.Options.NONE;
+    // submitted print jobs until they finish, by id
+    private final Map<Integer, PrintJob> mJobs = new ConcurrentHashMap<Integer, PrintJob>();
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -49,6 +84,7 @@ public class BluetoothService {
     public static final int MESSAGE_DEVICE_NAME = 7;
     public static final int MESSAGE_CONNECTION_LOST = 8;
     public static final int MESSAGE_UNABLE_CONNECT = 9;
+    public static final int MESSAGE_JOB_PROGRESS = 10;
 
     // Key names received from the BluetoothService Handler
     public static final String DEVICE_NAME = "device_name";
@@ -57,7 +93,11 @@ public class BluetoothService {
 
     public static String ErrorMessage = "No_Error_Message";
 
+    private volatile ResponseParser mResponseParser = new PrinterResponseParser();
+
     private static List<BluetoothServiceStateObserver> observers = new ArrayList<BluetoothServiceStateObserver>();
+    // MESSAGE_WRITE goes out per job, so it is only built for observers that asked for it
+    private static List<BluetoothServiceStateObserver> writeObservers = new CopyOnWriteArrayList<BluetoothServiceStateObserver>();
     private String mLastConnectedDeviceAddress = "";
 
     /**
@@ -79,14 +119,120 @@ public class BluetoothService {
         observers.remove(observer);
     }
 
+    /**
+     * Subscribe to MESSAGE_WRITE, which is not delivered to plain state observers.
+     */
+    public void addWriteObserver(BluetoothServiceStateObserver observer) {
+        writeObservers.add(observer);
+    }
+
+    public void removeWriteObserver(BluetoothServiceStateObserver observer) {
+        writeObservers.remove(observer);
+    }
+
+    /**
+     * Configure how large jobs are sent to one printer.
+     *
+     * @param address      the printer, null for every printer without options of its own
+     * @param chunkSize    split jobs larger than this many bytes, 0 to send them whole
+     * @param chunkDelayMs pause between chunks
+     * @param flowControl  poll the printer with DLE EOT between chunks and wait while it is offline
+     */
+    public void setTransmitOptions(String address, int chunkSize, int chunkDelayMs, boolean flowControl) {
+        ChunkedSender.Options options = new ChunkedSender.Options(chunkSize, chunkDelayMs, flowControl);
+        if (address == null) mTransmitOptions = options;
+        else mPrinterTransmitOptions.put(address, options);
+    }
+
+    private ChunkedSender.Options transmitOptions(String address) {
+        ChunkedSender.Options options = mPrinterTransmitOptions.get(address);
+        return options != null ? options : mTransmitOptions;
+    }
+
+    /**
+     * Replace the parser that decodes what the printer sends back.
+     */
+    public synchronized void setResponseParser(ResponseParser parser) {
+        mResponseParser = parser;
+        for (ConnectedThread r : mConnections.values()) {
+            r.mmReader.setParser(parser);
+        }
+    }
+
+    /**
+     * Configure the connection pool.
+     *
+     * @param maxConnections most printers kept connected at once, the least recently used one is closed beyond that
+     * @param idleTimeoutMs  close printers other than the default one after this long without writes, 0 to keep them
+     */
+    public synchronized void setPoolOptions(int maxConnections, long idleTimeoutMs) {
+        mMaxConnections = Math.max(1, maxConnections);
+        mIdleTimeoutMs = Math.max(0, idleTimeoutMs);
+    }
+
+    /**
+     * Send a request and register for its reply. Responses are also delivered to
+     * observers as MESSAGE_READ with the keys "type", "data" and "text".
+     *
+     * @param request      the bytes to send, e.g. DLE EOT n
+     * @param responseType the PrinterResponse type the reply is decoded as
+     * @return the pending reply, or null if nothing is connected
+     */
+    public PendingResponse query(byte[] request, int responseType) {
+        return query(null, request, responseType);
+    }
+
+    /**
+     * @param address the printer to query, null for the default printer
+     * @see #query(byte[], int)
+     */
+    public PendingResponse query(String address, byte[] request, int responseType) {
+        ConnectedThread r = connected(address);
+        if (r == null) return null;
+        return r.query(request, responseType);
+    }
+
+    /**
+     * Set how much of the outgoing traffic is logged, one of the WireLogger LEVEL_* values.
+     */
+    public void setWireLogLevel(int level) {
+        WireLogger.setLevel(level);
+    }
+
+    /**
+     * Journal every job to disk before it is sent, so it is resumed from its first
+     * byte after a reconnect or a restart instead of being lost. Applies to
+     * connections opened afterwards.
+     *
+     * @param dir directory for the spool files, null to stop spooling
+     * @see PrintSpool
+     */
+    public void setSpoolDirectory(File dir) {
+        mSpoolDir = dir;
+    }
+
+    /**
+     * Configure reconnecting after a connection drops. Queued jobs stay pending
+     * while reconnecting and go out once the printer is back.
+     *
+     * @param enabled   reconnect automatically, otherwise a drop ends the connection
+     * @param timeoutMs give up and report the connection lost after this long
+     */
+    public void setReconnectOptions(boolean enabled, long timeoutMs) {
+        mAutoReconnect = enabled;
+        mReconnectTimeoutMs = Math.max(0, timeoutMs);
+    }
+
     /**
      * Set the current state of the connection
      *
      * @param state An integer defining the current connection state
      */
-    private synchronized void setState(int state, Map<String, Object> bundle) {
-        if (DEBUG) Log.d(TAG, "setState() " + getStateName(mState) + " -> " + getStateName(state));
-        mState = state;
+    private synchronized void setState(ConnectedThread connection, int state, Map<String, Object> bundle) {
+        String address = connection.mmTransport.getAddress();
+        if (DEBUG) Log.d(TAG, "setState() " + address + " " + getStateName(connection.mmState) + " -> " + getStateName(state));
+        connection.mmState = state;
+        if (address.equals(mDefaultAddress)) mState = state;
         infoObervers(state, bundle);
     }
 
@@ -116,6 +262,33 @@ public class BluetoothService {
         return mState;
     }
 
+    /**
+     * @return the printer calls without an address go to, null before the first connect
+     */
+    public synchronized String getDefaultAddress() {
+        return mDefaultAddress;
+    }
+
+    /**
+     * @param address the printer, null for the default printer
+     */
+    public synchronized int getState(String address) {
+        if (address == null) return mState;
+        ConnectedThread r = mConnections.get(address);
+        return r != null ? r.mmState : STATE_NONE;
+    }
+
+    /**
+     * @return the addresses of all printers currently connected
+     */
+    public synchronized List<String> getConnectedAddresses() {
+        List<String> addresses = new ArrayList<String>();
+        for (ConnectedThread r : mConnections.values()) {
+            if (r.mmState == STATE_CONNECTED) addresses.add(r.mmTransport.getAddress());
+        }
+        return addresses;
+    }
+
 
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
@@ -123,24 +296,89 @@ public class BluetoothService {
      * @param device The BluetoothDevice to connect
      */
     public synchronized void connect(BluetoothDevice device) {
-        if (DEBUG) Log.d(TAG, "connect to: " + device);
-        BluetoothDevice connectedDevice = null;
-        if (mConnectedThread != null) {
-            connectedDevice = mConnectedThread.bluetoothDevice();
-        }
-        if (mState == STATE_CONNECTED && connectedDevice != null && connectedDevice.getAddress().equals(device.getAddress())) {
+        connect(new RfcommTransport(mAdapter, device));
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection over any transport,
+     * e.g. TCP for network printers or a loopback for benchmarks.
+     * Other pooled connections stay open; the printer becomes the default target.
+     *
+     * @param transport The printer to connect
+     */
+    public synchronized void connect(PrinterTransport transport) {
+        String address = transport.getAddress();
+        if (DEBUG) Log.d(TAG, "connect to: " + address);
+        mDefaultAddress = address;
+        ConnectedThread existing = mConnections.get(address);
+        if (existing != null && existing.mmState == STATE_CONNECTED && existing.connectedAddress() != null) {
             // connected already
-            Map<String, Object> bundle = new HashMap<String, Object>();
-            bundle.put(DEVICE_NAME, device.getName());
-            bundle.put(DEVICE_ADDRESS, device.getAddress());
-            setState(STATE_CONNECTED, bundle);
-        } else {
-            // Cancel any thread currently running a connection
-            this.stop();
-            // Start the thread to manage the connection and perform transmissions
-            mConnectedThread = new ConnectedThread(device);
-            mConnectedThread.start();
-            setState(STATE_CONNECTING, null);
+            setState(existing, STATE_CONNECTED, bundle(existing.mmTransport));
+            return;
+        }
+        if (existing != null && existing.mmState == STATE_CONNECTING) {
+            // the running attempt reports the result
+            mState = STATE_CONNECTING;
+            return;
+        }
+        if (existing != null) {
+            mConnections.remove(address);
+            existing.cancel();
+        }
+        evictIfFull();
+        // Start the thread to manage the connection and perform transmissions
+        ConnectedThread r = new ConnectedThread(transport);
+        mConnections.put(address, r);
+        r.start();
+        setState(r, STATE_CONNECTING, null);
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Close the least recently used connections until there is room for one more.
+     */
+    private void evictIfFull() {
+        // cancelling notifies the observers, who may look the pool up again, so collect first
+        List<ConnectedThread> victims = new ArrayList<ConnectedThread>();
+        Iterator<ConnectedThread> it = mConnections.values().iterator();
+        while (mConnections.size() >= mMaxConnections && it.hasNext()) {
+            victims.add(it.next());
+            it.remove();
+        }
+        for (ConnectedThread lru : victims) {
+            Log.d(TAG, "pool full, closing " + lru.mmTransport.getAddress());
+            lru.cancel();
+        }
+    }
+
+    private void scheduleIdleCheck() {
+        if (mIdleTimer != null) return;
+        mIdleTimer = new Timer("PrinterPoolIdle", true);
+        mIdleTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                closeIdle();
+            }
+        }, IDLE_CHECK_INTERVAL_MS, IDLE_CHECK_INTERVAL_MS);
+    }
+
+    private synchronized void closeIdle() {
+        if (mIdleTimeoutMs <= 0) return;
+        long now = System.currentTimeMillis();
+        List<ConnectedThread> idle = new ArrayList<ConnectedThread>();
+        Iterator<Map.Entry<String, ConnectedThread>> it = mConnections.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ConnectedThread> entry = it.next();
+            ConnectedThread r = entry.getValue();
+            if (entry.getKey().equals(mDefaultAddress) || r.mmState != STATE_CONNECTED) continue;
+            if (now - r.mmLastUsed > mIdleTimeoutMs) {
+                idle.add(r);
+                it.remove();
+            }
+        }
+        for (ConnectedThread r : idle) {
+            Log.d(TAG, "closing idle connection " + r.mmTransport.getAddress());
+            r.cancel();
         }
     }
 
@@ -148,208 +386,777 @@ public class BluetoothService {
      * Stop all threads
      */
     public synchronized void stop() {
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        List<ConnectedThread> all = new ArrayList<ConnectedThread>(mConnections.values());
+        mConnections.clear();
+        for (ConnectedThread r : all) {
+            r.cancel();
         }
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Close the connection to one printer.
+     */
+    public synchronized void stop(String address) {
+        ConnectedThread r = mConnections.remove(address);
+        if (r != null) r.cancel();
+    }
+
+    /**
+     * @param address the printer, null for the default printer
+     * @return its connection if it is connected
+     */
+    private synchronized ConnectedThread connected(String address) {
+        ConnectedThread r = mConnections.get(address != null ? address : mDefaultAddress);
+        // while reconnecting jobs are queued and wait for the printer
+        if (r == null || (r.mmState != STATE_CONNECTED && !r.mmReconnecting)) return null;
+        r.mmLastUsed = System.currentTimeMillis();
+        return r;
+    }
+
+    /**
+     * Queue bytes for the writer thread of the default printer's connection.
+     * Returns immediately; the returned job completes once the bytes were written.
      *
      * @param out The bytes to write
+     * @return the queued job, already failed if nothing is connected or the queue is full
      * @see ConnectedThread#write(byte[])
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    public WriteJob write(byte[] out) {
+        return write(null, out);
+    }
+
+    /**
+     * @param address the printer to write to, null for the default printer
+     * @see #write(byte[])
+     */
+    public WriteJob write(String address, byte[] out) {
+        return write(address, out, PrintJob.PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param priority PrintJob.PRIORITY_HIGH to pass everything queued, e.g. for a drawer kick
+     * @see #write(byte[])
+     */
+    public WriteJob write(String address, byte[] out, int priority) {
+        ConnectedThread r = connected(address);
+        if (r == null) return WriteJob.failed("NOT_CONNECTED");
+        return r.write(out, priority);
+    }
+
+    /**
+     * Queue a whole print job. Progress and the outcome are reported to the
+     * observers as MESSAGE_JOB_PROGRESS.
+     *
+     * @param address the printer, null for the default printer
+     * @return false if the job could not be queued, it is reported failed then
+     */
+    public boolean submit(String address, PrintJob job) {
+        ConnectedThread r = connected(address);
+        mJobs.put(job.getId(), job);
+        if (r == null) {
+            job.submit();
+            if (job.finish(PrintJob.STATE_FAILED)) reportJob(job, address);
+            return false;
         }
-        r.write(out);
+        return r.submit(job);
+    }
+
+    /**
+     * Stop a submitted job after the unit in flight.
+     *
+     * @return false if there is no such job or it finished already
+     */
+    public boolean cancelJob(int jobId) {
+        PrintJob job = mJobs.get(jobId);
+        return job != null && job.cancel();
+    }
+
+    private void reportJob(PrintJob job, String address) {
+        if (job.getState() >= PrintJob.STATE_DONE) mJobs.remove(job.getId());
+        Map<String, Object> bundle = new HashMap<String, Object>();
+        bundle.put("jobId", job.getId());
+        bundle.put("state", job.getState());
+        bundle.put("sent", job.getBytesSent());
+        bundle.put("total", job.getBytesTotal());
+        bundle.put(DEVICE_ADDRESS, address);
+        infoObervers(MESSAGE_JOB_PROGRESS, bundle);
+    }
+
+    /**
+     * Mark the end of a print job: whatever the writer is coalescing goes out now
+     * instead of after the linger timeout.
+     *
+     * @return a job that completes once everything queued before it was written
+     */
+    public WriteJob flush() {
+        return flush(null);
+    }
+
+    /**
+     * @param address the printer to flush, null for the default printer
+     * @see #flush()
+     */
+    public WriteJob flush(String address) {
+        ConnectedThread r = connected(address);
+        if (r == null) return WriteJob.failed("NOT_CONNECTED");
+        return r.flush(PrintJob.PRIORITY_NORMAL);
+    }
+
+    private static Map<String, Object> bundle(PrinterTransport transport) {
+        Map<String, Object> bundle = new HashMap<String, Object>();
+        bundle.put(DEVICE_NAME, transport.getName());
+        bundle.put(DEVICE_ADDRESS, transport.getAddress());
+        return bundle;
     }
 
     /**
      * Indicate that the connection attempt failed.
      */
-    private void connectionFailed() {
-        setState(STATE_NONE, null);
-        infoObervers(MESSAGE_UNABLE_CONNECT, null);
+    private synchronized void connectionFailed(ConnectedThread connection) {
+        if (mConnections.get(connection.mmTransport.getAddress()) == connection) {
+            mConnections.remove(connection.mmTransport.getAddress());
+        }
+        Map<String, Object> bundle = bundle(connection.mmTransport);
+        setState(connection, STATE_NONE, bundle);
+        infoObervers(MESSAGE_UNABLE_CONNECT, bundle);
+    }
+
+    /**
+     * Report a dropped connection as connecting again, without the lost event.
+     */
+    private synchronized void reconnecting(ConnectedThread connection) {
+        connection.mmReconnecting = true;
+        setState(connection, STATE_CONNECTING, bundle(connection.mmTransport));
+    }
+
+    private synchronized void reconnected(ConnectedThread connection) {
+        connection.mmReconnecting = false;
+        setState(connection, STATE_CONNECTED, bundle(connection.mmTransport));
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
-        setState(STATE_NONE, null);
-        infoObervers(MESSAGE_CONNECTION_LOST, null);
+    private synchronized void connectionLost(ConnectedThread connection) {
+        if (connection.mmLost) return;
+        connection.mmLost = true;
+        connection.mmReconnecting = false;
+        if (mConnections.get(connection.mmTransport.getAddress()) == connection) {
+            mConnections.remove(connection.mmTransport.getAddress());
+        }
+        Map<String, Object> bundle = bundle(connection.mmTransport);
+        setState(connection, STATE_NONE, bundle);
+        infoObervers(MESSAGE_CONNECTION_LOST, bundle);
+    }
+
+    /**
+     * A journal and the number of connections using it.
+     */
+    private static class SharedSpool {
+        final PrintSpool spool;
+        int users;
+
+        SharedSpool(PrintSpool spool) {
+            this.spool = spool;
+        }
+    }
+
+    /**
+     * The journal of a printer, opened on first use. A connection replacing one
+     * that is still winding down shares its journal rather than opening the
+     * files a second time.
+     *
+     * @return null when not spooling
+     */
+    private synchronized PrintSpool acquireSpool(String address) {
+        SharedSpool shared = mSpools.get(address);
+        if (shared == null) {
+            File dir = mSpoolDir;
+            if (dir == null) return null;
+            try {
+                shared = new SharedSpool(new PrintSpool(dir, address));
+            } catch (IOException e) {
+                Log.e(TAG, "unable to open spool, printing without", e);
+                return null;
+            }
+            mSpools.put(address, shared);
+        }
+        shared.users++;
+        return shared.spool;
+    }
+
+    /**
+     * Close the journal once the last connection using it ended.
+     */
+    private synchronized void releaseSpool(String address, PrintSpool spool) {
+        SharedSpool shared = mSpools.get(address);
+        if (shared == null || shared.spool != spool || --shared.users > 0) return;
+        mSpools.remove(address);
+        spool.close();
     }
 
     /**
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothDevice mmDevice;
-        private BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread
+            implements ChunkedSender.StatusProbe, ResponseReader.Listener {
+        private final PrinterTransport mmTransport;
         private InputStream mmInStream;
         private OutputStream mmOutStream;
+        private final WriteQueue mmQueue = new WriteQueue(WriteQueue.DEFAULT_CAPACITY);
+        // null when not spooling
+        private final PrintSpool mmSpool;
+        private final WriterThread mmWriter;
+        private final ResponseReader mmReader = new ResponseReader(mResponseParser, this);
+        // the DLE EOT reply the chunked sender waits for, only touched by the writer thread
+        private PendingResponse mmStatusReply;
+        // guarded by BluetoothService.this
+        private int mmState = STATE_NONE;
+        private boolean mmLost;
+        private boolean mmReconnecting;
+        private volatile boolean mmCancelled;
+        private volatile long mmLastUsed = System.currentTimeMillis();
 
-        public ConnectedThread(BluetoothDevice device) {
-            mmDevice = device;
-            device.getAddress();
+        public ConnectedThread(PrinterTransport transport) {
+            mmTransport = transport;
+            mmSpool = acquireSpool(transport.getAddress());
+            mmWriter = new WriterThread(mmQueue, this, mmSpool);
+        }
+
+        /**
+         * Queue the jobs a previous run committed but the printer never took,
+         * each as one job with its own boundary.
+         */
+        private void resumeSpool() {
+            if (mmSpool == null) return;
+            synchronized (mmSpool) {
+                PrintSpool.Job unfinished;
+                while ((unfinished = mmSpool.nextUnfinished()) != null) {
+                    WriteJob job = new WriteJob(unfinished.data, true);
+                    job.setSpoolOffset(unfinished.end);
+                    if (!mmQueue.offer(job)) {
+                        Log.e(TAG, "write queue full, spooled job stays for the next connect");
+                        return;
+                    }
+                    mmSpool.resumed(unfinished);
+                    Log.i(TAG, "resuming spooled job of " + unfinished.data.length + " bytes");
+                }
+            }
         }
 
         @Override
         public void run() {
             Log.i(TAG, "BEGIN mConnectThread");
             setName("ConnectThread");
-            Map<String, Object> bundle = new HashMap<String, Object>();
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            if (!openStreams()) {
+                connectionFailed(this);
+                if (mmSpool != null) releaseSpool(mmTransport.getAddress(), mmSpool);
+                return;
+            }
+            mmWriter.attach(new FrameWriter(mmOutStream, mmTransport.getMtu()));
+            mmWriter.start();
+            resumeSpool();
 
-            BluetoothSocket tmp = null;
+            setState(this, STATE_CONNECTED, bundle(mmTransport));
 
-            // try to connect with socket inner method firstly.
-            for (int i = 1; i <= 3; i++) {
-                try {
-                    tmp = (BluetoothSocket) mmDevice.getClass().getMethod("createRfcommSocket", int.class).invoke(mmDevice, i);
-                } catch (Exception e) {
-                }
-                if (tmp != null) {
-                    mmSocket = tmp;
-                    break;
-                }
-            }
+            Log.i(TAG, "Connected");
+
+            //keep the address of last connected device and get this address directly in the .js code
+            mLastConnectedDeviceAddress = mmTransport.getAddress();
 
-            // try with given uuid
-            if (mmSocket == null) {
+            do {
+                // Keep listening to the InputStream while connected
                 try {
-                    tmp = mmDevice.createRfcommSocketToServiceRecord(MY_UUID);
+                    while (mmReader.readOnce(mmInStream)) {
+                        // responses are dispatched by the reader
+                    }
+                    Log.e(TAG, "disconnected");
                 } catch (IOException e) {
-                    e.printStackTrace();
-                    Log.e(TAG, "create() failed", e);
-                }
-                if (tmp == null) {
-                    Log.e(TAG, "create() failed: Socket NULL.");
-                    connectionFailed();
-                    return;
+                    Log.e(TAG, "disconnected", e);
                 }
-            }
-            mmSocket = tmp;
+                mmWriter.detach();
+                mmReader.close();
+                closeTransport();
+            } while (reconnect());
+            connectionLost(this);
+            mmQueue.close();
+            mmWriter.shutdown();
+            if (mmSpool != null) releaseSpool(mmTransport.getAddress(), mmSpool);
+            Log.i(TAG, "ConnectedThread End");
+        }
 
-            // Make a connection to the BluetoothSocket
+        private boolean openStreams() {
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
+                mmTransport.open();
             } catch (Exception e) {
-                e.printStackTrace();
-                connectionFailed();
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (Exception e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                return;
+                Log.e(TAG, "unable to connect " + mmTransport.getAddress(), e);
+                return false;
             }
 
-
             Log.d(TAG, "create ConnectedThread");
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
+            // Get the transport's input and output streams
             try {
-                tmpIn = mmSocket.getInputStream();
-                tmpOut = mmSocket.getOutputStream();
+                mmInStream = mmTransport.getInputStream();
+                mmOutStream = mmTransport.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
+                closeTransport();
+                return false;
             }
+            return true;
+        }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-
-            bundle.put(DEVICE_NAME, mmDevice.getName());
-            bundle.put(DEVICE_ADDRESS, mmDevice.getAddress());
-            setState(STATE_CONNECTED, bundle);
+        /**
+         * Reopen the transport with exponential backoff. The write queue keeps
+         * its jobs meanwhile; the writer picks up where it stopped.
+         *
+         * @return true once reconnected, false if disabled, cancelled or timed out
+         */
+        private boolean reconnect() {
+            if (!mAutoReconnect || mmCancelled) return false;
+            reconnecting(this);
+            long deadline = System.currentTimeMillis() + mReconnectTimeoutMs;
+            long backoff = RECONNECT_MIN_BACKOFF_MS;
+            while (!mmCancelled && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                if (mmCancelled) return false;
+                Log.d(TAG, "reconnecting " + mmTransport.getAddress());
+                if (openStreams()) {
+                    if (mmCancelled) {
+                        closeTransport();
+                        return false;
+                    }
+                    mmWriter.attach(new FrameWriter(mmOutStream, mmTransport.getMtu()));
+                    reconnected(this);
+                    Log.i(TAG, "Reconnected");
+                    return true;
+                }
+                backoff = Math.min(backoff * 2, RECONNECT_MAX_BACKOFF_MS);
+            }
+            return false;
+        }
 
-            Log.i(TAG, "Connected");
-            int bytes;
+        /**
+         * Queue a write for this connection's writer thread.
+         *
+         * @param buffer The bytes to write
+         */
+        public WriteJob write(byte[] buffer, int priority) {
+            WriteJob job = new WriteJob(buffer);
+            job.setPriority(priority);
+            return enqueue(job);
+        }
 
-            //keep the address of last connected device and get this address directly in the .js code
-            mLastConnectedDeviceAddress = mmDevice.getAddress();
+        /**
+         * Queue every unit of a print job followed by its boundary, with nothing
+         * else of the same priority in between.
+         */
+        public boolean submit(PrintJob printJob) {
+            List<byte[]> units = printJob.submit();
+            boolean spooled = mmSpool != null && printJob.getPriority() != PrintJob.PRIORITY_HIGH;
+            synchronized (spooled ? mmSpool : this) {
+                for (int i = 0; i <= units.size(); i++) {
+                    WriteJob job = i < units.size() ? new WriteJob(units.get(i)) : new WriteJob(new byte[0], true);
+                    job.setPrintJob(printJob);
+                    if (enqueue(job).isFailed()) {
+                        // drop what was queued already
+                        printJob.cancel();
+                        if (printJob.finish(PrintJob.STATE_FAILED)) reportJob(printJob, mmTransport.getAddress());
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
 
-            // Keep listening to the InputStream while connected
-            while (true) {
+        /**
+         * Journal the job unless it jumps the queue, then hand it to the writer.
+         */
+        private WriteJob enqueue(WriteJob job) {
+            if (mmSpool == null || job.priority() == PrintJob.PRIORITY_HIGH) {
+                offer(job);
+                return job;
+            }
+            // the journal must see jobs in queue order
+            synchronized (mmSpool) {
                 try {
-                    byte[] buffer = new byte[256];
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    if (bytes > 0) {
-                        // Send the obtained bytes to the UI Activity
-                        bundle = new HashMap<String, Object>();
-                        bundle.put("bytes", bytes);
-                        infoObervers(MESSAGE_READ, bundle);
+                    if (job.isBoundary()) {
+                        job.setSpoolOffset(mmSpool.commit());
                     } else {
-                        Log.e(TAG, "disconnected");
-                        connectionLost();
-                        break;
+                        mmSpool.append(job.data());
                     }
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
+                    Log.e(TAG, "unable to spool job", e);
+                    if (!job.isBoundary()) {
+                        job.fail(e);
+                        return job;
+                    }
                 }
+                offer(job);
+            }
+            return job;
+        }
+
+        private void offer(WriteJob job) {
+            if (!mmQueue.offer(job)) {
+                job.fail(new IllegalStateException("WRITE_QUEUE_FULL"));
             }
-            Log.i(TAG, "ConnectedThread End");
         }
 
         /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
+         * Status requests jump the queue.
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-                mmOutStream.flush();//清空缓存
-               /* if (buffer.length > 3000) //
-                {
-                  byte[] readata = new byte[1];
-                  SPPReadTimeout(readata, 1, 5000);
-                }*/
-                Log.i("BTPWRITE", new String(buffer, "GBK"));
-                Map<String, Object> bundle = new HashMap<String, Object>();
-                bundle.put("bytes", buffer);
-                infoObervers(MESSAGE_WRITE, bundle);
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        public PendingResponse query(byte[] request, int responseType) {
+            PendingResponse pending = mmReader.expect(responseType);
+            if (write(request, PrintJob.PRIORITY_HIGH).isFailed() || flush(PrintJob.PRIORITY_HIGH).isFailed()) {
+                mmReader.cancel(pending);
+                pending.abandon();
             }
+            return pending;
         }
 
-        public BluetoothDevice bluetoothDevice() {
-            if (mmSocket != null && mmSocket.isConnected()) {
-                return mmSocket.getRemoteDevice();
-            } else {
-                return null;
+        @Override
+        public void onResponse(PrinterResponse response) {
+            Map<String, Object> bundle = new HashMap<String, Object>();
+            bundle.put("bytes", response.getData().length);
+            bundle.put("type", response.getType());
+            bundle.put("data", response.getData());
+            bundle.put("text", response.getText());
+            bundle.put(DEVICE_ADDRESS, mmTransport.getAddress());
+            infoObervers(MESSAGE_READ, bundle);
+        }
+
+        @Override
+        public void arm() {
+            mmStatusReply = mmReader.expect(PrinterResponse.TYPE_REALTIME_STATUS);
+        }
+
+        @Override
+        public int await(long timeoutMs) throws InterruptedException {
+            PendingResponse pending = mmStatusReply;
+            mmStatusReply = null;
+            PrinterResponse response = pending.await(timeoutMs);
+            if (response == null) {
+                mmReader.cancel(pending);
+                return -1;
             }
+            return response.getStatus();
+        }
+
+        public WriteJob flush(int priority) {
+            WriteJob job = new WriteJob(new byte[0], true);
+            job.setPriority(priority);
+            return enqueue(job);
+        }
+
+        /**
+         * @return the address of the printer, or null while not (or no longer) connected
+         */
+        public String connectedAddress() {
+            return mmTransport.isOpen() ? mmTransport.getAddress() : null;
         }
 
         public void cancel() {
+            mmCancelled = true;
+            mmQueue.close();
+            mmWriter.shutdown();
+            interrupt();
             try {
-                mmSocket.close();
-                connectionLost();
+                mmTransport.close();
+                connectionLost(this);
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
         }
+
+        void closeTransport() {
+            try {
+                mmTransport.close();
+            } catch (IOException e) {
+                Log.e(TAG, "unable to close() socket during connection failure", e);
+            }
+        }
     }
 
+    /**
+     * Drains the write queue of one connection, so callers never block on
+     * the RFCOMM round-trip of a write. Adjacent jobs are coalesced into
+     * MTU-sized frames; a frame goes out when it is full, when the queue stays
+     * empty for the linger time, or when a boundary job arrives. While the
+     * connection is down it waits for the next link without touching the queue.
+     * When spooling, a job cut off by a dropped link is sent again from its
+     * first byte on the next link, and its commit is acknowledged once it went out,
+     * with flow control on only once the printer answered a status request sent after it.
+     */
+    private class WriterThread extends Thread {
+        private final WriteQueue mmJobs;
+        private final ConnectedThread mmConnection;
+        private final PrintSpool mmSpool;
+        // jobs whose bytes sit (at least partly) in the current frame
+        private final List<WriteJob> mmInFrame = new ArrayList<WriteJob>();
+        // when spooling: jobs started since the last acknowledged boundary
+        private final List<WriteJob> mmSinceBoundary = new ArrayList<WriteJob>();
+        private int mmSinceBoundaryBytes;
+        // false from an oversized job until its boundary
+        private boolean mmTrackable = true;
+        private boolean mmResend;
+        // the link to write to, null while reconnecting; guarded by this
+        private FrameWriter mmLink;
+        private boolean mmShutdown;
+        // the link in use, only touched by the writer thread
+        private FrameWriter mmFrames;
+        private ChunkedSender mmChunks;
+
+        WriterThread(WriteQueue jobs, ConnectedThread connection, PrintSpool spool) {
+            mmJobs = jobs;
+            mmConnection = connection;
+            mmSpool = spool;
+            setName("WriterThread");
+        }
+
+        synchronized void attach(FrameWriter frames) {
+            mmLink = frames;
+            notifyAll();
+        }
+
+        synchronized void detach() {
+            mmLink = null;
+        }
+
+        synchronized void shutdown() {
+            mmShutdown = true;
+            notifyAll();
+        }
+
+        /**
+         * Block until there is a link to write to.
+         *
+         * @return false once the connection is closed for good
+         */
+        private synchronized boolean awaitLink() {
+            while (mmLink == null && !mmShutdown) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            if (mmShutdown) return false;
+            if (mmLink != mmFrames) {
+                if (mmSinceBoundary.isEmpty()) {
+                    // whatever was still buffered went down with the old link
+                    failFrame(new IOException("Connection lost"));
+                } else {
+                    // resent from the job boundary below
+                    mmInFrame.clear();
+                    mmResend = true;
+                }
+                mmFrames = mmLink;
+                mmChunks = new ChunkedSender(mmFrames, mmConnection);
+            }
+            return true;
+        }
+
+        private synchronized boolean linkChanged() {
+            return mmLink != mmFrames;
+        }
+
+        @Override
+        public void run() {
+            WriteJob job = null;
+            while (awaitLink()) {
+                if (mmResend) resend();
+                if (job == null) job = mmJobs.take();
+                if (job == null) break; // queue closed
+                // dropped while waiting for the job, keep it for the next link
+                if (linkChanged()) continue;
+                PrintJob owner = job.printJob();
+                int stop = owner != null ? owner.stopState() : -1;
+                if (stop >= 0) {
+                    skip(job, stop);
+                } else if (job.start()) { // otherwise cancelled while queued
+                    track(job);
+                    try {
+                        send(job);
+                    } catch (IOException e) {
+                        writeFailed(e);
+                    }
+                }
+                job = mmJobs.poll();
+                if (job == null && !mmInFrame.isEmpty()) {
+                    job = mmJobs.poll(WRITE_LINGER_NANOS);
+                    if (job == null) {
+                        try {
+                            flushFrame();
+                        } catch (IOException e) {
+                            writeFailed(e);
+                        }
+                    }
+                }
+            }
+            IOException closed = new IOException("Connection closed");
+            failFrame(closed);
+            for (WriteJob cut : mmSinceBoundary) {
+                failed(cut, closed);
+            }
+            for (; job != null; job = mmJobs.poll()) {
+                failed(job, closed);
+            }
+            Log.i(TAG, "WriterThread End");
+        }
+
+        private void send(WriteJob job) throws IOException {
+            ChunkedSender.Options transmit = transmitOptions(mmConnection.mmTransport.getAddress());
+            if (transmit.shouldChunk(job.data().length)) {
+                flushFrame();
+                mmInFrame.add(job);
+                mmChunks.send(job.data(), transmit);
+                flushFrame();
+            } else {
+                mmFrames.append(job.data());
+                mmInFrame.add(job);
+                // whatever jumped the queue should not wait for the frame to fill up either
+                if (job.isBoundary() || job.priority() == PrintJob.PRIORITY_HIGH) flushFrame();
+            }
+        }
+
+        /**
+         * Remember a started job until its boundary went out, as long as the job stays small enough.
+         */
+        private void track(WriteJob job) {
+            if (mmSpool == null || !mmTrackable || job.priority() == PrintJob.PRIORITY_HIGH) return;
+            if (mmSinceBoundaryBytes + job.data().length > RESEND_LIMIT) {
+                Log.w(TAG, "job too large to resend after a reconnect");
+                mmSinceBoundary.clear();
+                mmSinceBoundaryBytes = 0;
+                mmTrackable = false;
+                return;
+            }
+            mmSinceBoundary.add(job);
+            mmSinceBoundaryBytes += job.data().length;
+        }
+
+        /**
+         * Drop a unit of a cancelled or expired print job. Its boundary still
+         * settles the spool, so the job is not printed after a restart either.
+         */
+        private void skip(WriteJob job, int state) {
+            job.cancel(false);
+            if (job.spoolOffset() >= 0) {
+                mmSpool.ack(job.spoolOffset());
+                mmSinceBoundary.clear();
+                mmSinceBoundaryBytes = 0;
+                mmTrackable = true;
+            }
+            PrintJob owner = job.printJob();
+            if (job.isBoundary() && owner.finish(state)) {
+                reportJob(owner, mmConnection.mmTransport.getAddress());
+            }
+        }
+
+        private void failed(WriteJob job, IOException e) {
+            job.fail(e);
+            PrintJob owner = job.printJob();
+            if (owner != null && owner.finish(PrintJob.STATE_FAILED)) {
+                reportJob(owner, mmConnection.mmTransport.getAddress());
+            }
+        }
+
+        /**
+         * Send the cut-off job again from its first byte, on a fresh link.
+         */
+        private void resend() {
+            mmResend = false;
+            PrintJob owner = mmSinceBoundary.get(0).printJob();
+            if (owner != null && owner.stopState() >= 0) {
+                // the rest of it is skipped anyway
+                IOException stopped = new IOException("Print job stopped");
+                for (WriteJob cut : mmSinceBoundary) {
+                    cut.fail(stopped);
+                }
+                mmSinceBoundary.clear();
+                mmSinceBoundaryBytes = 0;
+                return;
+            }
+            List<WriteJob> jobs = new ArrayList<WriteJob>(mmSinceBoundary);
+            Log.i(TAG, "resending " + jobs.size() + " jobs from the last boundary");
+            try {
+                for (WriteJob job : jobs) {
+                    send(job);
+                }
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+
+        private void writeFailed(IOException e) {
+            Log.e(TAG, "Exception during write", e);
+            if (mmSinceBoundary.isEmpty() || e instanceof ChunkedSender.PrinterBusyException) {
+                failFrame(e);
+                mmSinceBoundary.clear();
+                mmSinceBoundaryBytes = 0;
+                return;
+            }
+            // keep the jobs for the next link and make the reader notice the dead one
+            synchronized (this) {
+                if (mmLink == mmFrames) mmLink = null;
+            }
+            mmConnection.closeTransport();
+        }
+
+        private void flushFrame() throws IOException {
+            mmFrames.flush();//清空缓存
+            if (spooledBoundaryInFrame()
+                    && transmitOptions(mmConnection.mmTransport.getAddress()).flowControl
+                    && !mmChunks.confirmReceived() && linkChanged()) {
+                // the reply never came because the link went down, resend from the boundary
+                throw new IOException("Connection lost before the printer confirmed the job");
+            }
+            boolean notify = !writeObservers.isEmpty();
+            for (WriteJob done : mmInFrame) {
+                done.complete();
+                PrintJob owner = done.printJob();
+                if (owner != null) {
+                    boolean report = owner.sent(done.data().length);
+                    if (done.isBoundary()) report |= owner.finish(PrintJob.STATE_DONE);
+                    if (report) reportJob(owner, mmConnection.mmTransport.getAddress());
+                }
+                if (done.spoolOffset() >= 0) {
+                    mmSpool.ack(done.spoolOffset());
+                    mmSinceBoundary.clear();
+                    mmSinceBoundaryBytes = 0;
+                    mmTrackable = true;
+                }
+                if (!notify || done.data().length == 0) continue;
+                Map<String, Object> bundle = new HashMap<String, Object>();
+                bundle.put("bytes", done.data());
+                for (BluetoothServiceStateObserver ob : writeObservers) {
+                    ob.onBluetoothServiceStateChanged(MESSAGE_WRITE, bundle);
+                }
+            }
+            mmInFrame.clear();
+        }
+
+        private boolean spooledBoundaryInFrame() {
+            for (WriteJob job : mmInFrame) {
+                if (job.spoolOffset() >= 0) return true;
+            }
+            return false;
+        }
+
+        private void failFrame(IOException e) {
+            for (WriteJob failed : mmInFrame) {
+                failed(failed, e);
+            }
+            mmInFrame.clear();
+        }
+    }
 
     //Method to get the address of the last connected device
     public String getLastConnectedDeviceAddress() {
@@ -0,0 +1,78 @@
+package cn.jystudio.bluetooth;
+
+/**
+ * Fixed-size circular byte buffer for inbound printer data. Allocated once per
+ * connection; when a parser falls behind the oldest bytes are dropped.
+ */
+public class ByteRing {
+    private final byte[] mBuf;
+    private int mHead; // index of the oldest byte
+    private int mSize;
+
+    public ByteRing(int capacity) {
+        mBuf = new byte[capacity];
+    }
+
+    /**
+     * @return how many of the oldest bytes were overwritten to make room
+     */
+    public int write(byte[] src, int offset, int length) {
+        int dropped = 0;
+        if (length > mBuf.length) {
+            dropped = length - mBuf.length;
+            offset += dropped;
+            length = mBuf.length;
+        }
+        int overflow = mSize + length - mBuf.length;
+        if (overflow > 0) {
+            skip(overflow);
+            dropped += overflow;
+        }
+        int tail = (mHead + mSize) % mBuf.length;
+        int first = Math.min(length, mBuf.length - tail);
+        System.arraycopy(src, offset, mBuf, tail, first);
+        System.arraycopy(src, offset + first, mBuf, 0, length - first);
+        mSize += length;
+        return dropped;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index 0 for the oldest byte
+     */
+    public int peek(int index) {
+        return mBuf[(mHead + index) % mBuf.length] & 0xff;
+    }
+
+    public int read() {
+        int b = peek(0);
+        skip(1);
+        return b;
+    }
+
+    public void read(byte[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (byte) peek(i);
+        }
+        skip(length);
+    }
+
+    public void skip(int count) {
+        count = Math.min(count, mSize);
+        mHead = (mHead + count) % mBuf.length;
+        mSize -= count;
+    }
+
+    /**
+     * @return the index of the first occurrence of b, or -1
+     */
+    public int indexOf(int b) {
+        for (int i = 0; i < mSize; i++) {
+            if (peek(i) == b) return i;
+        }
+        return -1;
+    }
+}
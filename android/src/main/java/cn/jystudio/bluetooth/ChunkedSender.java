@@ -0,0 +1,145 @@
+package cn.jystudio.bluetooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Sends large jobs (raster images mostly) in chunks, so cheap printers with a
+ * small receive buffer are not overrun. Between chunks it can pause for a fixed
+ * time and, with flow control on, poll the printer with DLE EOT 1 and back off
+ * for as long as it reports itself offline.
+ */
+class ChunkedSender {
+    private static final String TAG = "ChunkedSender";
+
+    /**
+     * The inbound side of the connection, answering a real-time status request.
+     */
+    interface StatusProbe {
+        /** Called before the request is written, so a fast reply is not missed. */
+        void arm();
+
+        /** @return the status byte, or -1 if the printer did not answer in time */
+        int await(long timeoutMs) throws InterruptedException;
+    }
+
+    /**
+     * The printer kept reporting itself offline, the link itself is fine.
+     */
+    static class PrinterBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PrinterBusyException() {
+            super("Printer stayed busy");
+        }
+    }
+
+    /**
+     * How one printer wants large jobs sent.
+     */
+    static class Options {
+        static final Options NONE = new Options(0, 0, false);
+
+        // 0 disables chunking
+        final int chunkSize;
+        final int chunkDelayMs;
+        final boolean flowControl;
+
+        Options(int chunkSize, int chunkDelayMs, boolean flowControl) {
+            this.chunkSize = Math.max(0, chunkSize);
+            this.chunkDelayMs = Math.max(0, chunkDelayMs);
+            this.flowControl = flowControl;
+        }
+
+        boolean shouldChunk(int length) {
+            return chunkSize > 0 && length > chunkSize;
+        }
+    }
+
+    private static final byte[] DLE_EOT_PRINTER_STATUS = new byte[]{0x10, 0x04, 0x01};
+    private static final int STATUS_OFFLINE = 0x08;
+    private static final long STATUS_TIMEOUT_MS = 500;
+    private static final long MIN_BACKOFF_MS = 20;
+    private static final long MAX_BACKOFF_MS = 1000;
+    private static final long BUSY_TIMEOUT_MS = 30000;
+
+    private final FrameWriter mOut;
+    private final StatusProbe mProbe;
+    // set once the printer ignored a status request, it will not start answering mid-job
+    private boolean mStatusUnsupported;
+
+    ChunkedSender(FrameWriter out, StatusProbe probe) {
+        mOut = out;
+        mProbe = probe;
+    }
+
+    /**
+     * Write data chunk by chunk, flushing after each one. The frame writer must be empty.
+     *
+     * @param options the printer's, with chunking on
+     */
+    void send(byte[] data, Options options) throws IOException {
+        int chunkSize = options.chunkSize;
+        int delay = options.chunkDelayMs;
+        boolean flowControl = options.flowControl && mProbe != null;
+        try {
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                mOut.append(data, offset, Math.min(chunkSize, data.length - offset));
+                mOut.flush();
+                if (offset + chunkSize >= data.length) break;
+                if (delay > 0) Thread.sleep(delay);
+                if (flowControl && !mStatusUnsupported) waitUntilReady(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Chunked send interrupted");
+        }
+    }
+
+    /**
+     * Ask for the printer status once and wait for the answer. The printer can
+     * only answer once it received every byte written before the request.
+     * The frame writer must be empty.
+     *
+     * @return false if the printer does not answer status requests
+     */
+    boolean confirmReceived() throws IOException {
+        if (mProbe == null || mStatusUnsupported) return false;
+        try {
+            mProbe.arm();
+            mOut.append(DLE_EOT_PRINTER_STATUS, 0, DLE_EOT_PRINTER_STATUS.length);
+            mOut.flush();
+            if (mProbe.await(STATUS_TIMEOUT_MS) >= 0) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Status request interrupted");
+        }
+        Log.w(TAG, "No reply to DLE EOT, acknowledging jobs once written");
+        mStatusUnsupported = true;
+        return false;
+    }
+
+    private void waitUntilReady(long delay) throws IOException, InterruptedException {
+        long backoff = Math.max(MIN_BACKOFF_MS, delay);
+        long deadline = System.currentTimeMillis() + BUSY_TIMEOUT_MS;
+        for (; ; ) {
+            mProbe.arm();
+            mOut.append(DLE_EOT_PRINTER_STATUS, 0, DLE_EOT_PRINTER_STATUS.length);
+            mOut.flush();
+            int status = mProbe.await(STATUS_TIMEOUT_MS);
+            if (status < 0) {
+                Log.w(TAG, "No reply to DLE EOT, continuing without flow control");
+                mStatusUnsupported = true;
+                return;
+            }
+            if ((status & STATUS_OFFLINE) == 0) return;
+            if (System.currentTimeMillis() > deadline) {
+                throw new PrinterBusyException();
+            }
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+}
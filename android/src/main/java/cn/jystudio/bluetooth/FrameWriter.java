@@ -0,0 +1,75 @@
+package cn.jystudio.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Gathers adjacent small writes into frames of at most one MTU, so a run of
+ * tiny ESC/POS commands reaches the socket as a single write instead of one
+ * write plus flush per command.
+ */
+class FrameWriter {
+    // RFCOMM default MTU on Android when the socket cannot tell us
+    static final int DEFAULT_MTU = 990;
+
+    private final OutputStream mOut;
+    private final byte[] mFrame;
+    private final WireLogger mLogger = new WireLogger();
+    private int mCount;
+
+    FrameWriter(OutputStream out, int mtu) {
+        mOut = out;
+        mFrame = new byte[mtu > 0 ? mtu : DEFAULT_MTU];
+    }
+
+    /**
+     * Append to the current frame, writing out every frame that fills up.
+     */
+    void append(byte[] data) throws IOException {
+        append(data, 0, data.length);
+    }
+
+    void append(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (mCount == 0 && end - offset >= mFrame.length) {
+                // whole frames straight from the caller's buffer, no copy
+                writeOut(data, offset, mFrame.length);
+                offset += mFrame.length;
+                continue;
+            }
+            int n = Math.min(mFrame.length - mCount, end - offset);
+            System.arraycopy(data, offset, mFrame, mCount, n);
+            mCount += n;
+            offset += n;
+            if (mCount == mFrame.length) {
+                writeOut(mFrame, 0, mCount);
+                mCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Write the partial frame, if any, and flush the stream.
+     */
+    void flush() throws IOException {
+        if (mCount > 0) {
+            writeOut(mFrame, 0, mCount);
+            mCount = 0;
+        }
+        mOut.flush();
+    }
+
+    private void writeOut(byte[] data, int offset, int length) throws IOException {
+        mOut.write(data, offset, length);
+        mLogger.log(data, offset, length);
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    int mtu() {
+        return mFrame.length;
+    }
+}
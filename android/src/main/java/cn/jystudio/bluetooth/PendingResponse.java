@@ -0,0 +1,41 @@
+package cn.jystudio.bluetooth;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reply the caller is waiting for, completed by the connection's read loop.
+ */
+public class PendingResponse {
+    private final int mType;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile PrinterResponse mResponse;
+
+    PendingResponse(int type) {
+        mType = type;
+    }
+
+    int type() {
+        return mType;
+    }
+
+    void complete(PrinterResponse response) {
+        mResponse = response;
+        mDone.countDown();
+    }
+
+    /**
+     * Give up without a response, e.g. because the connection went away.
+     */
+    void abandon() {
+        mDone.countDown();
+    }
+
+    /**
+     * @return the response, or null if none arrived in time
+     */
+    public PrinterResponse await(long timeoutMs) throws InterruptedException {
+        mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+        return mResponse;
+    }
+}
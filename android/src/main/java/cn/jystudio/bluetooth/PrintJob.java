@@ -0,0 +1,170 @@
+package cn.jystudio.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of printer commands that is queued, printed, cancelled and reported
+ * on as a whole. Commands are appended while the job is open; once submitted
+ * the writer sends them unit by unit, checking between units whether the job
+ * was cancelled or ran past its deadline, so a job stops after the unit in
+ * flight and never in the middle of a command.
+ */
+public class PrintJob {
+    // priorities, lower values are written first
+    public static final int PRIORITY_HIGH = 0;   // drawer kicks, status queries; never spooled
+    public static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITIES = 2;
+
+    public static final int STATE_OPEN = 0;
+    public static final int STATE_QUEUED = 1;
+    public static final int STATE_PRINTING = 2;
+    public static final int STATE_DONE = 3;
+    public static final int STATE_CANCELLED = 4;
+    public static final int STATE_EXPIRED = 5;
+    public static final int STATE_FAILED = 6;
+
+    // largest unit a split command is cut into
+    static final int UNIT_SIZE = 4096;
+    // progress is reported in steps of 1/PROGRESS_STEPS of the job
+    private static final int PROGRESS_STEPS = 20;
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    private final int mId = sNextId.getAndIncrement();
+    private final int mPriority;
+    private final long mDeadline;
+    private final List<byte[]> mUnits = new ArrayList<byte[]>();
+    private volatile int mState = STATE_OPEN;
+    private volatile boolean mCancelled;
+    private long mTotal;
+    // written by the writer thread only
+    private volatile long mSent;
+    private int mReportedStep = -1;
+
+    /**
+     * @param priority   one of the PRIORITY_* values
+     * @param deadlineMs wall-clock time after which the rest of the job is dropped, 0 for none
+     */
+    public PrintJob(int priority, long deadlineMs) {
+        mPriority = Math.max(PRIORITY_HIGH, Math.min(PRIORITY_NORMAL, priority));
+        mDeadline = deadlineMs;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getBytesSent() {
+        return mSent;
+    }
+
+    public synchronized long getBytesTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Add one command to the open job.
+     */
+    public synchronized void append(byte[] command) {
+        if (mState != STATE_OPEN) throw new IllegalStateException("Job " + mId + " was already submitted");
+        mUnits.add(command);
+        mTotal += command.length;
+    }
+
+    /**
+     * Add a run of equally sized commands, e.g. raster rows, cut into units at
+     * command boundaries so a cancel can take effect in between.
+     *
+     * @param commandSize size of one command, the length of data is a multiple of it
+     */
+    public synchronized void append(byte[] data, int commandSize) {
+        if (commandSize <= 0 || data.length <= UNIT_SIZE || data.length % commandSize != 0) {
+            append(data);
+            return;
+        }
+        int unit = Math.max(1, UNIT_SIZE / commandSize) * commandSize;
+        for (int offset = 0; offset < data.length; offset += unit) {
+            int length = Math.min(unit, data.length - offset);
+            byte[] part = new byte[length];
+            System.arraycopy(data, offset, part, 0, length);
+            append(part);
+        }
+    }
+
+    /**
+     * Add every unit of another job that was built up on the side, all in one
+     * step: a job submitted meanwhile gets none of them rather than the first few.
+     */
+    public synchronized void append(PrintJob staged) {
+        if (mState != STATE_OPEN) throw new IllegalStateException("Job " + mId + " was already submitted");
+        for (byte[] unit : staged.submit()) {
+            append(unit);
+        }
+    }
+
+    /**
+     * Stop the job after the unit in flight.
+     *
+     * @return false if it had finished already
+     */
+    public boolean cancel() {
+        if (mState >= STATE_DONE) return false;
+        mCancelled = true;
+        return true;
+    }
+
+    /**
+     * Freeze the job for the writer.
+     */
+    synchronized List<byte[]> submit() {
+        if (mState != STATE_OPEN) throw new IllegalStateException("Job " + mId + " was already submitted");
+        mState = STATE_QUEUED;
+        return Collections.unmodifiableList(mUnits);
+    }
+
+    /**
+     * @return the state to finish with if the rest of the job must be dropped, or -1 to go on
+     */
+    int stopState() {
+        // a unit failed, the rest would print a broken job
+        if (mState >= STATE_DONE) return mState;
+        if (mCancelled) return STATE_CANCELLED;
+        if (mDeadline > 0 && System.currentTimeMillis() > mDeadline) return STATE_EXPIRED;
+        return -1;
+    }
+
+    /**
+     * Count bytes that reached the printer.
+     *
+     * @return whether progress moved on far enough to report it
+     */
+    boolean sent(int bytes) {
+        if (mState == STATE_QUEUED) mState = STATE_PRINTING;
+        mSent += bytes;
+        long total = getBytesTotal();
+        int step = total > 0 ? (int) (mSent * PROGRESS_STEPS / total) : PROGRESS_STEPS;
+        if (step == mReportedStep) return false;
+        mReportedStep = step;
+        return true;
+    }
+
+    /**
+     * @return false if the job had finished already
+     */
+    boolean finish(int state) {
+        if (mState >= STATE_DONE) return false;
+        mState = state;
+        return true;
+    }
+}
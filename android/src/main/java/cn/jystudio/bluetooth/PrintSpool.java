@@ -0,0 +1,241 @@
+package cn.jystudio.bluetooth;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of the bytes sent to one printer, so a job survives a
+ * dropped link or a dead process. Every write is journaled before it is queued,
+ * flush() commits the job, and once the printer took a committed job its end
+ * offset is acknowledged in a small side file.
+ * <p>
+ * On the next open, committed jobs past the acknowledged offset are handed out
+ * again from their first byte, so a receipt is printed whole rather than from the
+ * middle. Jobs that were never committed are torn and dropped, acknowledged jobs
+ * are never handed out again. The journal is truncated whenever everything in it
+ * was acknowledged.
+ * <p>
+ * Record layout: type byte, int payload length, payload.
+ */
+public class PrintSpool {
+    private static final String TAG = "PrintSpool";
+
+    private static final byte RECORD_DATA = 'D';
+    private static final byte RECORD_COMMIT = 'C';
+    private static final int HEADER_SIZE = 5;
+
+    /**
+     * A committed job that was not acknowledged before the spool was opened.
+     */
+    public static class Job {
+        final byte[] data;
+        // logical offset to acknowledge once the job went out
+        final long end;
+
+        Job(byte[] data, long end) {
+            this.data = data;
+            this.end = end;
+        }
+    }
+
+    private final FileChannel mJournal;
+    private final FileChannel mAckFile;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer mAck = ByteBuffer.allocate(8);
+    // offsets handed out are logical: physical position plus what compaction removed
+    private long mBase;
+    private long mAcked;
+    private long mSize;
+    // whether data was appended since the last commit
+    private boolean mOpenJob;
+    private List<Job> mUnfinished;
+
+    /**
+     * @param dir     directory holding the spool files, created if missing
+     * @param address the printer the journal belongs to
+     */
+    public PrintSpool(File dir, String address) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + dir);
+        }
+        String name = address.replaceAll("[^A-Za-z0-9._-]", "_");
+        mJournal = new RandomAccessFile(new File(dir, name + ".spool"), "rw").getChannel();
+        mAckFile = new RandomAccessFile(new File(dir, name + ".ack"), "rw").getChannel();
+        recover();
+    }
+
+    /**
+     * Read back the acknowledged offset and the committed jobs after it,
+     * cutting off a torn tail.
+     */
+    private void recover() throws IOException {
+        mAck.clear();
+        mAcked = mAckFile.read(mAck, 0) == 8 ? mAck.getLong(0) : 0;
+        long length = mJournal.size();
+        List<Job> unfinished = new ArrayList<Job>();
+        List<byte[]> parts = new ArrayList<byte[]>();
+        long jobStart = 0;
+        long committed = 0;
+        long position = 0;
+        while (position + HEADER_SIZE <= length) {
+            mHeader.clear();
+            readFully(mHeader, position);
+            byte type = mHeader.get(0);
+            int size = mHeader.getInt(1);
+            if ((type != RECORD_DATA && type != RECORD_COMMIT) || size < 0 || position + HEADER_SIZE + size > length) {
+                break;
+            }
+            long next = position + HEADER_SIZE + size;
+            if (type == RECORD_DATA) {
+                // acknowledgements fall on commits, so a job is either all in or all out
+                if (jobStart >= mAcked) {
+                    ByteBuffer payload = ByteBuffer.allocate(size);
+                    readFully(payload, position + HEADER_SIZE);
+                    parts.add(payload.array());
+                }
+            } else {
+                if (jobStart >= mAcked && !parts.isEmpty()) {
+                    unfinished.add(new Job(concat(parts), next));
+                }
+                parts.clear();
+                jobStart = next;
+                committed = next;
+            }
+            position = next;
+        }
+        if (committed < length) {
+            Log.w(TAG, "dropping " + (length - committed) + " uncommitted bytes");
+            mJournal.truncate(committed);
+        }
+        mSize = committed;
+        if (mAcked > mSize) mAcked = mSize;
+        mUnfinished = unfinished;
+        mJournal.position(mSize);
+        compact();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = mJournal.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("Spool truncated");
+        }
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return data;
+    }
+
+    /**
+     * The oldest committed job the printer did not take before the spool was
+     * opened. It is handed out again until {@link #resumed(Job)} is called for it.
+     *
+     * @return null once every job was resumed
+     */
+    public synchronized Job nextUnfinished() {
+        return mUnfinished.isEmpty() ? null : mUnfinished.get(0);
+    }
+
+    /**
+     * The job was queued again, do not hand it out any more.
+     */
+    public synchronized void resumed(Job job) {
+        mUnfinished.remove(job);
+    }
+
+    /**
+     * Journal bytes that are about to be queued.
+     */
+    public synchronized void append(byte[] data) throws IOException {
+        writeRecord(RECORD_DATA, data);
+        mOpenJob = true;
+    }
+
+    /**
+     * End the current job and make it durable.
+     *
+     * @return the offset to acknowledge once the job went out
+     */
+    public synchronized long commit() throws IOException {
+        if (!mOpenJob) return mBase + mSize;
+        writeRecord(RECORD_COMMIT, null);
+        mOpenJob = false;
+        mJournal.force(false);
+        return mBase + mSize;
+    }
+
+    private void writeRecord(byte type, byte[] payload) throws IOException {
+        int size = payload != null ? payload.length : 0;
+        mHeader.clear();
+        mHeader.put(type).putInt(size).flip();
+        ByteBuffer[] record = payload != null
+                ? new ByteBuffer[]{mHeader, ByteBuffer.wrap(payload)}
+                : new ByteBuffer[]{mHeader};
+        long expected = HEADER_SIZE + size;
+        long written = 0;
+        while (written < expected) {
+            written += mJournal.write(record);
+        }
+        mSize += expected;
+    }
+
+    /**
+     * The printer took everything up to this offset, as returned by {@link #commit()}.
+     */
+    public synchronized void ack(long offset) {
+        long physical = offset - mBase;
+        if (physical <= mAcked) return;
+        mAcked = Math.min(physical, mSize);
+        try {
+            if (!compact()) writeAck();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to acknowledge spool offset", e);
+        }
+    }
+
+    private void writeAck() throws IOException {
+        mAck.clear();
+        mAck.putLong(0, mAcked);
+        while (mAck.hasRemaining()) {
+            mAckFile.write(mAck, mAck.position());
+        }
+        mAckFile.force(false);
+    }
+
+    /**
+     * Drop the journal once every byte in it was acknowledged and no job is open.
+     */
+    private boolean compact() throws IOException {
+        if (mAcked < mSize || mOpenJob || mSize == 0) return false;
+        mBase += mSize;
+        mJournal.truncate(0);
+        mJournal.position(0);
+        mSize = 0;
+        mAcked = 0;
+        writeAck();
+        return true;
+    }
+
+    public synchronized void close() {
+        try {
+            mJournal.close();
+            mAckFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to close spool", e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package cn.jystudio.bluetooth;
+
+/**
+ * One decoded reply from the printer.
+ */
+public class PrinterResponse {
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_REALTIME_STATUS = 1; // DLE EOT n, TSC ESC ! ?
+    public static final int TYPE_AUTO_STATUS = 2;     // GS a, Automatic Status Back
+    public static final int TYPE_TEXT = 3;            // TSC ~! queries
+
+    private final int mType;
+    private final byte[] mData;
+    private final String mText;
+
+    public PrinterResponse(int type, byte[] data, String text) {
+        mType = type;
+        mData = data;
+        mText = text;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @return the first status byte, or -1 for an empty response
+     */
+    public int getStatus() {
+        return mData != null && mData.length > 0 ? mData[0] & 0xff : -1;
+    }
+
+    public String getText() {
+        return mText;
+    }
+}
@@ -0,0 +1,45 @@
+package cn.jystudio.bluetooth;
+
+import java.nio.charset.Charset;
+
+/**
+ * Default parser, covering the replies of ESC/POS and TSC printers:
+ * DLE EOT n status bytes (0xx1xx10), Automatic Status Back blocks (GS a, four bytes,
+ * first 0xx1xx00 then 0xx0xxxx), and the CR terminated text of TSC ~! queries.
+ */
+public class PrinterResponseParser implements ResponseParser {
+    private static final int ASB_LENGTH = 4;
+    private static final int CR = 0x0D;
+    private static final int LF = 0x0A;
+    private static final Charset TEXT_CHARSET = Charset.forName("US-ASCII");
+
+    @Override
+    public PrinterResponse next(ByteRing in, int expected) {
+        if (in.size() == 0) return null;
+        if (expected == PrinterResponse.TYPE_TEXT) {
+            return nextText(in);
+        }
+        int b = in.peek(0);
+        if ((b & 0x93) == 0x10) {
+            if (in.size() < ASB_LENGTH) return null;
+            byte[] data = new byte[ASB_LENGTH];
+            in.read(data, 0, ASB_LENGTH);
+            return new PrinterResponse(PrinterResponse.TYPE_AUTO_STATUS, data, null);
+        }
+        in.skip(1);
+        if ((b & 0x93) == 0x12 || expected == PrinterResponse.TYPE_REALTIME_STATUS) {
+            return new PrinterResponse(PrinterResponse.TYPE_REALTIME_STATUS, new byte[]{(byte) b}, null);
+        }
+        return new PrinterResponse(PrinterResponse.TYPE_UNKNOWN, new byte[]{(byte) b}, null);
+    }
+
+    private PrinterResponse nextText(ByteRing in) {
+        int end = in.indexOf(CR);
+        if (end < 0) return null;
+        byte[] data = new byte[end];
+        in.read(data, 0, end);
+        in.skip(1);
+        if (in.size() > 0 && in.peek(0) == LF) in.skip(1);
+        return new PrinterResponse(PrinterResponse.TYPE_TEXT, data, new String(data, TEXT_CHARSET));
+    }
+}
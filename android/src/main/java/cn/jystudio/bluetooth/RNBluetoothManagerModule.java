@@ -15,6 +15,9 @@ import androidx.core.content.ContextCompat;
 import android.util.Log;
 import android.widget.Toast;
 
+import cn.jystudio.bluetooth.transport.LoopbackTransport;
+import cn.jystudio.bluetooth.transport.RfcommTransport;
+import cn.jystudio.bluetooth.transport.TcpTransport;
 import com.facebook.react.bridge.*;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
@@ -23,6 +26,7 @@ import org.json.JSONObject;
 
 import javax.annotation.Nullable;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,6 +47,8 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
     public static final String EVENT_UNABLE_CONNECT = "EVENT_UNABLE_CONNECT";
     public static final String EVENT_CONNECTED = "EVENT_CONNECTED";
     public static final String EVENT_BLUETOOTH_NOT_SUPPORT = "EVENT_BLUETOOTH_NOT_SUPPORT";
+    public static final String EVENT_PRINTER_RESPONSE = "EVENT_PRINTER_RESPONSE";
+    public static final String EVENT_JOB_PROGRESS = "EVENT_JOB_PROGRESS";
 
 
     // Intent request codes
@@ -51,12 +57,14 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
 
     public static final int MESSAGE_STATE_CHANGE = BluetoothService.MESSAGE_STATE_CHANGE;
     public static final int MESSAGE_READ = BluetoothService.MESSAGE_READ;
+    public static final int MESSAGE_JOB_PROGRESS = BluetoothService.MESSAGE_JOB_PROGRESS;
     public static final int MESSAGE_WRITE = BluetoothService.MESSAGE_WRITE;
     public static final int MESSAGE_DEVICE_NAME = BluetoothService.MESSAGE_DEVICE_NAME;
 
     public static final int MESSAGE_CONNECTION_LOST = BluetoothService.MESSAGE_CONNECTION_LOST;
     public static final int MESSAGE_UNABLE_CONNECT = BluetoothService.MESSAGE_UNABLE_CONNECT;
     public static final String DEVICE_NAME = BluetoothService.DEVICE_NAME;
+    public static final String DEVICE_ADDRESS = BluetoothService.DEVICE_ADDRESS;
     public static final String TOAST = BluetoothService.TOAST;
 
     // Return Intent extra
@@ -66,6 +74,7 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
     private static final String PROMISE_ENABLE_BT = "ENABLE_BT";
     private static final String PROMISE_SCAN = "SCAN";
     private static final String PROMISE_CONNECT = "CONNECT";
+    private static final String SPOOL_DIR = "printspool";
 
     private JSONArray pairedDeivce = new JSONArray();
     private JSONArray foundDevice = new JSONArray();
@@ -75,6 +84,8 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
     private BluetoothAdapter mBluetoothAdapter = null;
     // Member object for the services
     private BluetoothService mService = null;
+    // the last in-memory printer connected, kept for its statistics
+    private volatile LoopbackTransport mLoopback = null;
 
     public RNBluetoothManagerModule(ReactApplicationContext reactContext, BluetoothService bluetoothService) {
         super(reactContext);
@@ -100,6 +111,8 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
         constants.put(EVENT_UNABLE_CONNECT, EVENT_UNABLE_CONNECT);
         constants.put(EVENT_CONNECTED, EVENT_CONNECTED);
         constants.put(EVENT_BLUETOOTH_NOT_SUPPORT, EVENT_BLUETOOTH_NOT_SUPPORT);
+        constants.put(EVENT_PRINTER_RESPONSE, EVENT_PRINTER_RESPONSE);
+        constants.put(EVENT_JOB_PROGRESS, EVENT_JOB_PROGRESS);
         constants.put(DEVICE_NAME, DEVICE_NAME);
         constants.put(EVENT_BLUETOOTH_NOT_SUPPORT, EVENT_BLUETOOTH_NOT_SUPPORT);
         return constants;
@@ -215,7 +228,7 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
         BluetoothAdapter adapter = this.getBluetoothAdapter();
         if (adapter!=null && adapter.isEnabled()) {
             BluetoothDevice device = adapter.getRemoteDevice(address);
-            promiseMap.put(PROMISE_CONNECT, promise);
+            promiseMap.put(PROMISE_CONNECT + device.getAddress(), promise);
             mService.connect(device);
         } else {
             promise.reject("BT NOT ENABLED");
@@ -223,13 +236,52 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
 
     }
 
+    /* Connect a network printer on a raw TCP port (9100 when port is 0) */
+    @ReactMethod
+    public void connectTcp(String host, int port, final Promise promise) {
+        TcpTransport transport = new TcpTransport(host, port);
+        promiseMap.put(PROMISE_CONNECT + transport.getAddress(), promise);
+        mService.connect(transport);
+    }
+
+    /* Connect the in-memory loopback printer: {bufferSize, bytesPerSecond, mtu}, all optional */
+    @ReactMethod
+    public void connectLoopback(@Nullable ReadableMap options, final Promise promise) {
+        int bufferSize = 0, bytesPerSecond = 0, mtu = 0;
+        if (options != null) {
+            bufferSize = options.hasKey("bufferSize") ? options.getInt("bufferSize") : 0;
+            bytesPerSecond = options.hasKey("bytesPerSecond") ? options.getInt("bytesPerSecond") : 0;
+            mtu = options.hasKey("mtu") ? options.getInt("mtu") : 0;
+        }
+        mLoopback = new LoopbackTransport(bufferSize, bytesPerSecond, mtu);
+        promiseMap.put(PROMISE_CONNECT + mLoopback.getAddress(), promise);
+        mService.connect(mLoopback);
+    }
+
+    /* Bytes and write calls the loopback printer received since the last call */
+    @ReactMethod
+    public void getLoopbackStats(final Promise promise) {
+        LoopbackTransport loopback = mLoopback;
+        if (loopback == null) {
+            promise.reject("NO_LOOPBACK");
+            return;
+        }
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("bytes", loopback.getBytesWritten());
+        stats.putDouble("writes", loopback.getWriteCalls());
+        stats.putDouble("flushes", loopback.getFlushCalls());
+        loopback.resetStats();
+        promise.resolve(stats);
+    }
+
     @ReactMethod
     public void disconnect(String address, final Promise promise){
         BluetoothAdapter adapter = this.getBluetoothAdapter();
-        if (adapter!=null && adapter.isEnabled()) {
-            BluetoothDevice device = adapter.getRemoteDevice(address);
+        // TCP and loopback printers do not need the adapter
+        boolean rfcomm = address != null && BluetoothAdapter.checkBluetoothAddress(address.toUpperCase());
+        if (!rfcomm || (adapter!=null && adapter.isEnabled())) {
             try {
-                mService.stop();
+                mService.stop(address);
             } catch (Exception e) {
                 Log.e(TAG, e.getMessage());
             }
@@ -246,6 +298,8 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
         if (adapter!=null && adapter.isEnabled()) {
             BluetoothDevice device = adapter.getRemoteDevice(address);
             this.unpairDevice(device);
+            // the next pairing may expose the printer on another channel
+            RfcommTransport.forgetStrategy(address);
             promise.resolve(address);
         } else {
             promise.reject("BT NOT ENABLED");
@@ -290,6 +344,66 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
 
 
 
+    /* Split large jobs into paced chunks: {address, chunkSize, chunkDelay (ms), flowControl}, no address for all printers */
+    @ReactMethod
+    public void setTransmitOptions(ReadableMap options) {
+        if (mService != null) {
+            String address = options.hasKey("address") ? options.getString("address") : null;
+            int chunkSize = options.hasKey("chunkSize") ? options.getInt("chunkSize") : 0;
+            int chunkDelay = options.hasKey("chunkDelay") ? options.getInt("chunkDelay") : 0;
+            boolean flowControl = options.hasKey("flowControl") && options.getBoolean("flowControl");
+            mService.setTransmitOptions(address, chunkSize, chunkDelay, flowControl);
+        }
+    }
+
+    /* Set how much outgoing printer traffic goes to logcat: 0 off, 1 byte counts, 2 sampled hex, 3 full hex */
+    @ReactMethod
+    public void setWireLogLevel(int level) {
+        if (mService != null) {
+            mService.setWireLogLevel(level);
+        }
+    }
+
+    /* Keep at most maxConnections printers open, closing non-default ones idle for idleTimeout ms (0 keeps them) */
+    @ReactMethod
+    public void setPoolOptions(ReadableMap options) {
+        if (mService != null) {
+            int maxConnections = options.hasKey("maxConnections") ? options.getInt("maxConnections") : 4;
+            int idleTimeout = options.hasKey("idleTimeout") ? options.getInt("idleTimeout") : 5 * 60 * 1000;
+            mService.setPoolOptions(maxConnections, idleTimeout);
+        }
+    }
+
+    /* Reconnect dropped printers automatically: {enabled, timeout (ms before giving up)} */
+    @ReactMethod
+    public void setReconnectOptions(ReadableMap options) {
+        if (mService != null) {
+            boolean enabled = !options.hasKey("enabled") || options.getBoolean("enabled");
+            int timeout = options.hasKey("timeout") ? options.getInt("timeout") : 60 * 1000;
+            mService.setReconnectOptions(enabled, timeout);
+        }
+    }
+
+    /* Journal jobs to app storage so they survive dropped links and restarts, for printers connected afterwards */
+    @ReactMethod
+    public void setSpoolEnabled(boolean enabled) {
+        if (mService != null) {
+            mService.setSpoolDirectory(enabled ? new File(reactContext.getFilesDir(), SPOOL_DIR) : null);
+        }
+    }
+
+    /* Return the addresses of all connected printers */
+    @ReactMethod
+    public void getConnectedPrinters(final Promise promise) {
+        WritableArray addresses = Arguments.createArray();
+        if (mService != null) {
+            for (String address : mService.getConnectedAddresses()) {
+                addresses.pushString(address);
+            }
+        }
+        promise.resolve(addresses);
+    }
+
     /* Return the address of the currently connected device */
     @ReactMethod
     public void getConnectedDeviceAddress(final Promise promise) {
@@ -472,11 +586,12 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
             case MESSAGE_DEVICE_NAME: {
                 // save the connected device's name
                 mConnectedDeviceName = (String) bundle.get(DEVICE_NAME);
-                Promise p = promiseMap.remove(PROMISE_CONNECT);
+                Promise p = promiseMap.remove(PROMISE_CONNECT + bundle.get(DEVICE_ADDRESS));
                 if (p == null) {
                     Log.d(TAG, "No Promise found.");
                     WritableMap params = Arguments.createMap();
                     params.putString(DEVICE_NAME, mConnectedDeviceName);
+                    params.putString(DEVICE_ADDRESS, (String) bundle.get(DEVICE_ADDRESS));
                     emitRNEvent(EVENT_CONNECTED, params);
                 } else {
                     Log.d(TAG, "Promise Resolve.");
@@ -489,16 +604,47 @@ public class RNBluetoothManagerModule extends ReactContextBaseJavaModule
                 //Connection lost should not be the connect result.
                 // Promise p = promiseMap.remove(PROMISE_CONNECT);
                 // if (p == null) {
-                emitRNEvent(EVENT_CONNECTION_LOST, null);
+                WritableMap params = Arguments.createMap();
+                params.putString(DEVICE_ADDRESS, (String) bundle.get(DEVICE_ADDRESS));
+                emitRNEvent(EVENT_CONNECTION_LOST, params);
                 // } else {
                 //   p.reject("Device connection was lost");
                 //}
                 break;
             }
+            case MESSAGE_READ: {
+                // status replies and Automatic Status Back from the printer
+                WritableMap params = Arguments.createMap();
+                params.putInt("type", (Integer) bundle.get("type"));
+                byte[] data = (byte[]) bundle.get("data");
+                params.putInt("status", data.length > 0 ? data[0] & 0xff : -1);
+                WritableArray bytes = Arguments.createArray();
+                for (byte b : data) {
+                    bytes.pushInt(b & 0xff);
+                }
+                params.putArray("data", bytes);
+                params.putString("text", (String) bundle.get("text"));
+                params.putString(DEVICE_ADDRESS, (String) bundle.get(DEVICE_ADDRESS));
+                emitRNEvent(EVENT_PRINTER_RESPONSE, params);
+                break;
+            }
+            case MESSAGE_JOB_PROGRESS: {
+                // print job progress and outcome
+                WritableMap params = Arguments.createMap();
+                params.putInt("jobId", (Integer) bundle.get("jobId"));
+                params.putInt("state", (Integer) bundle.get("state"));
+                params.putDouble("sent", (Long) bundle.get("sent"));
+                params.putDouble("total", (Long) bundle.get("total"));
+                params.putString(DEVICE_ADDRESS, (String) bundle.get(DEVICE_ADDRESS));
+                emitRNEvent(EVENT_JOB_PROGRESS, params);
+                break;
+            }
             case MESSAGE_UNABLE_CONNECT: {     //无法连接设备
-                Promise p = promiseMap.remove(PROMISE_CONNECT);
+                Promise p = promiseMap.remove(PROMISE_CONNECT + bundle.get(DEVICE_ADDRESS));
                 if (p == null) {
-                    emitRNEvent(EVENT_UNABLE_CONNECT, null);
+                    WritableMap params = Arguments.createMap();
+                    params.putString(DEVICE_ADDRESS, (String) bundle.get(DEVICE_ADDRESS));
+                    emitRNEvent(EVENT_UNABLE_CONNECT, params);
                 } else {
                     p.reject("Unable to connect device");
                 }
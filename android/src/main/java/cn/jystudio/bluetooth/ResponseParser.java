@@ -0,0 +1,15 @@
+package cn.jystudio.bluetooth;
+
+/**
+ * Turns the raw inbound byte stream of a connection into printer responses.
+ */
+public interface ResponseParser {
+    /**
+     * Decode the next response from the front of the ring, consuming its bytes.
+     *
+     * @param in       inbound bytes not consumed yet
+     * @param expected the PrinterResponse type the oldest pending request waits for, TYPE_UNKNOWN if none
+     * @return the response, or null if more bytes are needed
+     */
+    PrinterResponse next(ByteRing in, int expected);
+}
@@ -0,0 +1,88 @@
+package cn.jystudio.bluetooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads a connection's input stream into one reusable buffer, runs the parser
+ * over it and hands each response to the oldest matching waiter and to the listener.
+ */
+class ResponseReader {
+    private static final String TAG = "ResponseReader";
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final int RING_CAPACITY = 4096;
+
+    interface Listener {
+        void onResponse(PrinterResponse response);
+    }
+
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private final ByteRing mRing = new ByteRing(RING_CAPACITY);
+    private final ConcurrentLinkedQueue<PendingResponse> mPending = new ConcurrentLinkedQueue<PendingResponse>();
+    private final Listener mListener;
+    private volatile ResponseParser mParser;
+
+    ResponseReader(ResponseParser parser, Listener listener) {
+        mParser = parser;
+        mListener = listener;
+    }
+
+    void setParser(ResponseParser parser) {
+        mParser = parser;
+    }
+
+    /**
+     * Register interest in the next response of a type. Call before the request is written.
+     */
+    PendingResponse expect(int type) {
+        PendingResponse pending = new PendingResponse(type);
+        mPending.offer(pending);
+        return pending;
+    }
+
+    void cancel(PendingResponse pending) {
+        mPending.remove(pending);
+    }
+
+    /**
+     * Block for the next chunk of input and dispatch what it completes.
+     *
+     * @return false once the stream has ended
+     */
+    boolean readOnce(InputStream in) throws IOException {
+        int bytes = in.read(mReadBuffer);
+        if (bytes <= 0) return false;
+        int dropped = mRing.write(mReadBuffer, 0, bytes);
+        if (dropped > 0) Log.w(TAG, "Dropped " + dropped + " unparsed bytes");
+        dispatch();
+        return true;
+    }
+
+    private void dispatch() {
+        PrinterResponse response;
+        while ((response = mParser.next(mRing, expectedType())) != null) {
+            for (PendingResponse pending : mPending) {
+                if (pending.type() == response.getType() && mPending.remove(pending)) {
+                    pending.complete(response);
+                    break;
+                }
+            }
+            mListener.onResponse(response);
+        }
+    }
+
+    private int expectedType() {
+        PendingResponse oldest = mPending.peek();
+        return oldest != null ? oldest.type() : PrinterResponse.TYPE_UNKNOWN;
+    }
+
+    void close() {
+        PendingResponse pending;
+        while ((pending = mPending.poll()) != null) {
+            pending.abandon();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package cn.jystudio.bluetooth;
+
+import android.util.Log;
+
+/**
+ * Logs what a connection puts on the wire. Nothing is formatted unless the
+ * level asks for it, and hex lines are built in a buffer owned by the logger,
+ * so one instance must only be used from its connection's writer thread.
+ */
+class WireLogger {
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_BYTES = 1;       // byte count per write
+    public static final int LEVEL_HEX_SAMPLED = 2; // byte count plus the first line of hex
+    public static final int LEVEL_FULL = 3;        // complete hex dump
+
+    private static final String TAG = "BTPWRITE";
+    private static final int BYTES_PER_LINE = 32;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static volatile int sLevel = LEVEL_OFF;
+
+    private final char[] mLine = new char[BYTES_PER_LINE * 3];
+
+    static void setLevel(int level) {
+        if (level < LEVEL_OFF || level > LEVEL_FULL) level = LEVEL_OFF;
+        sLevel = level;
+    }
+
+    static int getLevel() {
+        return sLevel;
+    }
+
+    void log(byte[] data, int offset, int length) {
+        int level = sLevel;
+        if (level == LEVEL_OFF || length <= 0) return;
+        Log.i(TAG, "write " + length + " bytes");
+        if (level == LEVEL_BYTES) return;
+        int end = level == LEVEL_FULL ? offset + length : offset + Math.min(length, BYTES_PER_LINE);
+        for (int i = offset; i < end; i += BYTES_PER_LINE) {
+            Log.i(TAG, hexLine(data, i, Math.min(BYTES_PER_LINE, end - i)));
+        }
+    }
+
+    private String hexLine(byte[] data, int offset, int count) {
+        int c = 0;
+        for (int i = 0; i < count; i++) {
+            int b = data[offset + i] & 0xff;
+            mLine[c++] = HEX[b >>> 4];
+            mLine[c++] = HEX[b & 0x0f];
+            mLine[c++] = ' ';
+        }
+        return new String(mLine, 0, c > 0 ? c - 1 : 0);
+    }
+}
@@ -0,0 +1,156 @@
+package cn.jystudio.bluetooth;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A block of bytes queued for the writer thread of a connection.
+ * The job doubles as its own completion future: it is done once the bytes
+ * reached the socket, failed if the write (or the enqueue) did not succeed.
+ */
+public class WriteJob implements Future<Void> {
+    static final int STATE_PENDING = 0;
+    static final int STATE_RUNNING = 1;
+    static final int STATE_DONE = 2;
+    static final int STATE_FAILED = 3;
+    static final int STATE_CANCELLED = 4;
+
+    private final byte[] mData;
+    private final boolean mBoundary;
+    private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Throwable mError;
+    // spool offset to acknowledge once this boundary went out, -1 when not spooled
+    private long mSpoolOffset = -1;
+    private int mPriority = PrintJob.PRIORITY_NORMAL;
+    // the print job this write belongs to, null for loose writes
+    private PrintJob mPrintJob;
+
+    WriteJob(byte[] data) {
+        this(data, false);
+    }
+
+    /**
+     * @param boundary whether the writer should flush the current frame after this job
+     */
+    WriteJob(byte[] data, boolean boundary) {
+        mData = data;
+        mBoundary = boundary;
+    }
+
+    /**
+     * A job that never made it into a queue, e.g. because nothing is connected.
+     */
+    static WriteJob failed(String reason) {
+        WriteJob job = new WriteJob(null);
+        job.fail(new IllegalStateException(reason));
+        return job;
+    }
+
+    byte[] data() {
+        return mData;
+    }
+
+    boolean isBoundary() {
+        return mBoundary;
+    }
+
+    long spoolOffset() {
+        return mSpoolOffset;
+    }
+
+    void setSpoolOffset(long offset) {
+        mSpoolOffset = offset;
+    }
+
+    int priority() {
+        return mPriority;
+    }
+
+    void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    PrintJob printJob() {
+        return mPrintJob;
+    }
+
+    void setPrintJob(PrintJob job) {
+        mPrintJob = job;
+        mPriority = job.getPriority();
+    }
+
+    boolean start() {
+        return mState.compareAndSet(STATE_PENDING, STATE_RUNNING);
+    }
+
+    void complete() {
+        if (mState.compareAndSet(STATE_RUNNING, STATE_DONE)) mDone.countDown();
+    }
+
+    void fail(Throwable error) {
+        mError = error;
+        if (mState.compareAndSet(STATE_PENDING, STATE_FAILED)
+                || mState.compareAndSet(STATE_RUNNING, STATE_FAILED)) {
+            mDone.countDown();
+        }
+    }
+
+    public boolean isFailed() {
+        return mState.get() == STATE_FAILED;
+    }
+
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * Only jobs the writer has not picked up yet can be cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+            mDone.countDown();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mState.get() == STATE_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mState.get() >= STATE_DONE;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) throw new TimeoutException();
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        switch (mState.get()) {
+            case STATE_CANCELLED:
+                throw new CancellationException();
+            case STATE_FAILED:
+                throw new ExecutionException(mError);
+            default:
+                return null;
+        }
+    }
+}
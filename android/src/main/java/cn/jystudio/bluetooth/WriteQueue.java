@@ -0,0 +1,103 @@
+package cn.jystudio.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue between the bridge threads (producers) and the
+ * single writer thread of a connection (consumer).
+ * Producers never block: offer() fails fast once the queue is full or closed.
+ * There is one lane per priority; the consumer always drains the higher lanes first.
+ */
+class WriteQueue {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final List<ConcurrentLinkedQueue<WriteJob>> mLanes;
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final int mCapacity;
+    private volatile Thread mConsumer;
+    private volatile boolean mClosed;
+
+    WriteQueue(int capacity) {
+        mCapacity = capacity;
+        mLanes = new ArrayList<ConcurrentLinkedQueue<WriteJob>>(PrintJob.PRIORITIES);
+        for (int i = 0; i < PrintJob.PRIORITIES; i++) {
+            mLanes.add(new ConcurrentLinkedQueue<WriteJob>());
+        }
+    }
+
+    boolean offer(WriteJob job) {
+        if (mClosed) return false;
+        int size;
+        do {
+            size = mSize.get();
+            if (size >= mCapacity) return false;
+        } while (!mSize.compareAndSet(size, size + 1));
+        ConcurrentLinkedQueue<WriteJob> lane = mLanes.get(job.priority());
+        lane.offer(job);
+        // the consumer may have drained and exited between the check above and now
+        if (mClosed && lane.remove(job)) {
+            mSize.decrementAndGet();
+            return false;
+        }
+        Thread consumer = mConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    WriteJob poll() {
+        for (ConcurrentLinkedQueue<WriteJob> lane : mLanes) {
+            WriteJob job = lane.poll();
+            if (job != null) {
+                mSize.decrementAndGet();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for the next job. Must only be called from the consumer thread.
+     *
+     * @return the next job, or null once the queue is closed or the thread interrupted
+     */
+    WriteJob take() {
+        mConsumer = Thread.currentThread();
+        for (; ; ) {
+            WriteJob job = poll();
+            if (job != null) return job;
+            if (mClosed || Thread.currentThread().isInterrupted()) return null;
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Wait at most timeoutNanos for the next job. Must only be called from the consumer thread.
+     *
+     * @return the next job, or null on timeout, close or interrupt
+     */
+    WriteJob poll(long timeoutNanos) {
+        mConsumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (; ; ) {
+            WriteJob job = poll();
+            if (job != null) return job;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || mClosed || Thread.currentThread().isInterrupted()) return null;
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    int size() {
+        return mSize.get();
+    }
+
+    void close() {
+        mClosed = true;
+        Thread consumer = mConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+}
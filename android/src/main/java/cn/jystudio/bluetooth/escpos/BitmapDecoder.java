@@ -0,0 +1,152 @@
+package cn.jystudio.bluetooth.escpos;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+import cn.jystudio.bluetooth.escpos.command.sdk.RasterEncoder;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * Decodes a compressed image no larger than it is printed. Only the header is
+ * read up front; the pixels are decoded with the largest power of two
+ * subsampling that still leaves the printed width, JPEGs as RGB_565 since they
+ * have no alpha. An image that would still take more than MAX_DECODED_BYTES is
+ * decoded and encoded in horizontal strips, so a photo or a long receipt never
+ * sits in memory at full resolution.
+ */
+public class BitmapDecoder {
+    private static final String TAG = "BitmapDecoder";
+
+    // decoded pixels held at a time before an image is taken in strips
+    private static final int MAX_DECODED_BYTES = 1024 * 1024;
+    // width the mean gray level of a stripped image is taken at
+    private static final int PREVIEW_WIDTH = 64;
+
+    private final byte[] mData;
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+
+    public BitmapDecoder(byte[] data) {
+        mData = data;
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        mWidth = bounds.outWidth;
+        mHeight = bounds.outHeight;
+        mConfig = "image/jpeg".equals(bounds.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return whether the header could be read, the pixels may still turn out broken
+     */
+    public boolean isImage() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    /**
+     * @param width width in dots the image is printed at
+     */
+    @Nullable
+    public Bitmap decode(int width) {
+        if (!isImage()) return null;
+        return BitmapFactory.decodeByteArray(mData, 0, mData.length, options(width));
+    }
+
+    /**
+     * Encode the image at the printed width, in strips if it is too large to decode whole.
+     *
+     * @return false if the image could not be decoded or the sink stopped the encoding
+     */
+    public boolean encode(RasterEncoder encoder, int width, int leftPadding, RasterEncoder.BandSink sink) {
+        if (!isImage()) return false;
+        BitmapFactory.Options options = options(width);
+        int sampledWidth = mWidth / options.inSampleSize;
+        int sampledHeight = mHeight / options.inSampleSize;
+        int bytesPerPixel = mConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        if ((long) sampledWidth * sampledHeight * bytesPerPixel > MAX_DECODED_BYTES) {
+            BitmapRegionDecoder regions = null;
+            try {
+                regions = BitmapRegionDecoder.newInstance(mData, 0, mData.length, false);
+            } catch (IOException e) {
+                // not a format regions can be decoded from, GIF for one
+                Log.d(TAG, "decoding " + mWidth + "x" + mHeight + " whole: " + e.getMessage());
+            }
+            if (regions != null) {
+                try {
+                    return encodeStrips(regions, options, encoder, width, leftPadding, sink);
+                } finally {
+                    regions.recycle();
+                }
+            }
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(mData, 0, mData.length, options);
+        if (bitmap == null) return false;
+        try {
+            return encoder.encode(bitmap, width, 0, leftPadding, sink);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Each strip is decoded subsampled, scaled to the printed width and a whole number
+     * of bands, and encoded with the rows just above it decoded along, so error
+     * diffusion runs into the strip as it runs into any band. The threshold mode needs
+     * the mean gray level of the whole image, which is taken from a small preview
+     * decoded first.
+     */
+    private boolean encodeStrips(BitmapRegionDecoder regions, BitmapFactory.Options options,
+                                 RasterEncoder encoder, int width, int leftPadding, RasterEncoder.BandSink sink) {
+        int dots = ((width + 7) / 8) * 8;
+        int left = leftPadding == 0 ? 0 : ((leftPadding + 7) / 8) * 8;
+        // rows the whole image comes to, as RasterEncoder scales it
+        int rows = (int) (((long) mHeight * dots / mWidth + 7) / 8 * 8);
+
+        Bitmap preview = BitmapFactory.decodeByteArray(mData, 0, mData.length, options(PREVIEW_WIDTH));
+        if (preview == null) return false;
+        int mean = RasterEncoder.meanGray(preview);
+        preview.recycle();
+        // the left padding counts as white, as it does for a bitmap encoded whole
+        encoder.setThreshold((mean * dots + 255 * left) / (dots + left));
+
+        int bytesPerPixel = mConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        long sampledRowBytes = (long) (mWidth / options.inSampleSize) * bytesPerPixel;
+        // decoded bytes per printed row: the subsampled rows behind it and the scaled row
+        double rowBytes = sampledRowBytes * (double) mHeight / options.inSampleSize / rows + dots * bytesPerPixel;
+        // strips start where the bands of an image encoded whole would
+        int bandRows = encoder.bandRows();
+        int stripRows = Math.max(bandRows, (int) (MAX_DECODED_BYTES / rowBytes) / bandRows * bandRows);
+
+        Rect rect = new Rect();
+        for (int top = 0; top < rows; top += stripRows) {
+            int bottom = Math.min(rows, top + stripRows);
+            int overlap = Math.min(top, RasterEncoder.DIFFUSION_WARMUP_ROWS);
+            rect.set(0, (int) ((long) (top - overlap) * mHeight / rows), mWidth, (int) ((long) bottom * mHeight / rows));
+            if (rect.height() == 0) rect.bottom = Math.min(mHeight, rect.top + 1);
+            Bitmap region = regions.decodeRegion(rect, options);
+            if (region == null) return false;
+            Bitmap strip = Bitmap.createScaledBitmap(region, dots, bottom - top + overlap, true);
+            if (strip != region) region.recycle();
+            try {
+                if (!encoder.encodeStrip(strip, overlap, top, leftPadding, sink)) return false;
+            } finally {
+                strip.recycle();
+            }
+        }
+        return true;
+    }
+
+    private BitmapFactory.Options options(int width) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        int sample = 1;
+        while (mWidth / (sample * 2) >= width) sample *= 2;
+        options.inSampleSize = sample;
+        options.inPreferredConfig = mConfig;
+        return options;
+    }
+}
@@ -0,0 +1,320 @@
+package cn.jystudio.bluetooth.escpos;
+
+import android.util.Log;
+import cn.jystudio.bluetooth.escpos.command.sdk.PrintPicture;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Images registered under a key, to be stored in the printer once and then
+ * printed with a few bytes. Which version of which image every printer holds is
+ * tracked per storage slot; NV memory survives power cycles, so that part of the
+ * record is kept in a file across restarts, download graphics memory does not,
+ * so it is forgotten whenever the printer drops the connection.
+ */
+public class GraphicsStore {
+    private static final String TAG = "GraphicsStore";
+
+    // GS ( L fn 67 / 69, NV graphics by a two character key code
+    public static final int NV = 0;
+    // GS ( L fn 83 / 85, download graphics, lost when the printer is switched off
+    public static final int DOWNLOAD = 1;
+    // FS q / FS p, NV bit images by number, every definition replaces all of them
+    public static final int LEGACY = 2;
+
+    // GS ( L carries at most 65535 parameter bytes, larger graphics need GS 8 L
+    private static final int GRAPHICS_MAX_PARAMS = 65535;
+    // key codes are printable characters 32 to 126, space left out
+    private static final int KEY_FIRST = 33;
+    private static final int KEY_CODES = 94;
+    // tracking slot of the FS q set, which is defined as a whole
+    private static final String LEGACY_SLOT = "fsq";
+
+    /**
+     * A registered image as packed raster rows, 1 for a black dot.
+     */
+    public static class Graphic {
+        final String key;
+        final byte[] raster;
+        // in dots, a multiple of 8
+        final int width;
+        final int rows;
+        final String version;
+        final int kc1;
+        final int kc2;
+
+        Graphic(String key, byte[] raster, int width, int rows, String version, int kc1, int kc2) {
+            this.key = key;
+            this.raster = raster;
+            this.width = width;
+            this.rows = rows;
+            this.version = version;
+            this.kc1 = kc1;
+            this.kc2 = kc2;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Graphic> mGraphics = new HashMap<String, Graphic>();
+    // address/store/slot to the version the printer holds there, NV memory and FS q images
+    private Properties mHeld;
+    // the same for download graphics, never written to the file
+    private final Map<String, String> mDownloaded = new HashMap<String, String>();
+    // version of the FS q set, changes whenever any registered image does
+    private String mLegacyVersion;
+
+    /**
+     * @param file where what the printers hold in NV memory is recorded
+     */
+    public GraphicsStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param raster packed rows of width / 8 bytes each
+     * @return the version, changes whenever the image does
+     */
+    public synchronized String register(String key, byte[] raster, int width, int rows) {
+        byte[] hash = new byte[raster.length + 4];
+        System.arraycopy(raster, 0, hash, 0, raster.length);
+        hash[raster.length] = (byte) width;
+        hash[raster.length + 1] = (byte) (width >> 8);
+        hash[raster.length + 2] = (byte) rows;
+        hash[raster.length + 3] = (byte) (rows >> 8);
+        String version = RasterCache.digest(hash);
+        Graphic previous = mGraphics.get(key);
+        int code = previous != null ? previous.kc1 * 256 + previous.kc2 : keyCode(key);
+        mGraphics.put(key, new Graphic(key, raster, width, rows, version, code >> 8, code & 0xff));
+        StringBuilder set = new StringBuilder();
+        for (String legacyKey : legacyKeys()) {
+            set.append(legacyKey).append('/').append(mGraphics.get(legacyKey).version).append('\n');
+        }
+        mLegacyVersion = RasterCache.digest(set.toString());
+        return version;
+    }
+
+    /**
+     * A key code pair derived from the key, so it stays the same from run to run
+     * unless two keys collide.
+     */
+    private int keyCode(String key) {
+        String digest = RasterCache.digest(key);
+        int slot = Integer.parseInt(digest.substring(0, 6), 16) % (KEY_CODES * KEY_CODES);
+        for (; ; slot = (slot + 1) % (KEY_CODES * KEY_CODES)) {
+            int code = (KEY_FIRST + slot / KEY_CODES) * 256 + KEY_FIRST + slot % KEY_CODES;
+            boolean taken = false;
+            for (Graphic graphic : mGraphics.values()) {
+                taken |= graphic.kc1 * 256 + graphic.kc2 == code;
+            }
+            if (!taken) return code;
+        }
+    }
+
+    @Nullable
+    public synchronized Graphic get(String key) {
+        return mGraphics.get(key);
+    }
+
+    /**
+     * What defineCommand() stores for the graphic, to hand to defined() once the printer took it.
+     */
+    public synchronized String definitionVersion(Graphic graphic, int store) {
+        return store == LEGACY ? mLegacyVersion : graphic.version;
+    }
+
+    /**
+     * @return the commands that store the graphic in the printer, null if it holds this version already
+     */
+    @Nullable
+    public synchronized byte[] defineCommand(String address, Graphic graphic, int store) {
+        if (store == LEGACY) {
+            return mLegacyVersion.equals(version(address, store, LEGACY_SLOT)) ? null : legacyDefinition();
+        }
+        String slot = graphic.kc1 + "." + graphic.kc2;
+        return graphic.version.equals(version(address, store, slot)) ? null : graphicsDefinition(graphic, store);
+    }
+
+    /**
+     * Record that the printer took a definition from defineCommand().
+     *
+     * @param version definitionVersion() when the definition was sent
+     */
+    public synchronized void defined(String address, Graphic graphic, int store, String version) {
+        if (store == DOWNLOAD) {
+            mDownloaded.put(slot(address, store, graphic.kc1 + "." + graphic.kc2), version);
+            return;
+        }
+        held().setProperty(slot(address, store, store == LEGACY ? LEGACY_SLOT : graphic.kc1 + "." + graphic.kc2),
+                version);
+        save();
+    }
+
+    public synchronized byte[] printCommand(Graphic graphic, int store) {
+        if (store == LEGACY) {
+            //FS p n m
+            return new byte[]{28, 112, (byte) (legacyKeys().indexOf(graphic.key) + 1), 0};
+        }
+        //GS ( L pL pH m fn kc1 kc2 x y
+        return new byte[]{29, 40, 76, 6, 0, 48, (byte) (store == DOWNLOAD ? 85 : 69),
+                (byte) graphic.kc1, (byte) graphic.kc2, 1, 1};
+    }
+
+    /**
+     * Forget what a printer holds, so everything is stored again on next use.
+     *
+     * @param downloadOnly only the download graphics, which the printer lost when it went off
+     */
+    public synchronized void forget(String address, boolean downloadOnly) {
+        String prefix = address + "/";
+        for (Iterator<String> it = mDownloaded.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) it.remove();
+        }
+        if (downloadOnly) return;
+        boolean changed = false;
+        for (Iterator<Object> it = held().keySet().iterator(); it.hasNext(); ) {
+            if (((String) it.next()).startsWith(prefix)) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) save();
+    }
+
+    @Nullable
+    private String version(String address, int store, String slot) {
+        String key = slot(address, store, slot);
+        return store == DOWNLOAD ? mDownloaded.get(key) : held().getProperty(key);
+    }
+
+    private static String slot(String address, int store, String slot) {
+        return address + "/" + store + "/" + slot;
+    }
+
+    private static byte[] graphicsDefinition(Graphic graphic, int store) {
+        long params = 11L + graphic.raster.length;
+        boolean large = params > GRAPHICS_MAX_PARAMS;
+        byte[] data = new byte[(large ? 7 : 5) + (int) params];
+        int k = 0;
+        data[k++] = 29;//GS
+        if (large) {
+            //GS 8 L p1 p2 p3 p4 m fn a kc1 kc2 b xL xH yL yH c d1...dk
+            data[k++] = 56;//8
+            data[k++] = 76;//L
+            data[k++] = (byte) params;
+            data[k++] = (byte) (params >> 8);
+            data[k++] = (byte) (params >> 16);
+            data[k++] = (byte) (params >> 24);
+        } else {
+            //GS ( L pL pH m fn a kc1 kc2 b xL xH yL yH c d1...dk
+            data[k++] = 40;//(
+            data[k++] = 76;//L
+            data[k++] = (byte) params;
+            data[k++] = (byte) (params >> 8);
+        }
+        data[k++] = 48;
+        data[k++] = (byte) (store == DOWNLOAD ? 83 : 67);
+        data[k++] = 48;//monochrome raster
+        data[k++] = (byte) graphic.kc1;
+        data[k++] = (byte) graphic.kc2;
+        data[k++] = 1;//one color
+        data[k++] = (byte) graphic.width;
+        data[k++] = (byte) (graphic.width >> 8);
+        data[k++] = (byte) graphic.rows;
+        data[k++] = (byte) (graphic.rows >> 8);
+        data[k++] = 49;//color 1
+        System.arraycopy(graphic.raster, 0, data, k, graphic.raster.length);
+        return data;
+    }
+
+    private List<String> legacyKeys() {
+        List<String> keys = new ArrayList<String>(mGraphics.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * FS q n followed by every registered image, numbered 1 to n in key order,
+     * in the column format PrintPicture.pixToEscNvBitImageCmd produces. FS q counts
+     * rows in units of 8, so each image is padded with white rows up to a multiple of 8.
+     */
+    private byte[] legacyDefinition() {
+        List<String> keys = legacyKeys();
+        List<byte[]> images = new ArrayList<byte[]>();
+        int length = 3;
+        for (String key : keys) {
+            Graphic graphic = mGraphics.get(key);
+            int rows = (graphic.rows + 7) / 8 * 8;
+            byte[] image = PrintPicture.pixToEscNvBitImageCmd(unpack(graphic, rows), graphic.width, rows);
+            images.add(image);
+            length += image.length;
+        }
+        byte[] data = new byte[length];
+        data[0] = 28;//FS
+        data[1] = 113;//q
+        data[2] = (byte) keys.size();
+        int k = 3;
+        for (byte[] image : images) {
+            System.arraycopy(image, 0, data, k, image.length);
+            k += image.length;
+        }
+        return data;
+    }
+
+    /**
+     * One byte per dot, 1 for black, as pixToEscNvBitImageCmd takes it.
+     *
+     * @param rows at least graphic.rows, the rows past those are left white
+     */
+    private static byte[] unpack(Graphic graphic, int rows) {
+        byte[] pixels = new byte[graphic.width * rows];
+        for (int i = 0; i < graphic.width * graphic.rows; i++) {
+            pixels[i] = (byte) ((graphic.raster[i >> 3] >> (7 - (i & 7))) & 1);
+        }
+        return pixels;
+    }
+
+    private Properties held() {
+        if (mHeld == null) {
+            mHeld = new Properties();
+            if (mFile.exists()) {
+                try {
+                    InputStream in = new FileInputStream(mFile);
+                    try {
+                        mHeld.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to read stored graphics", e);
+                }
+            }
+        }
+        return mHeld;
+    }
+
+    private void save() {
+        try {
+            OutputStream out = new FileOutputStream(mFile);
+            try {
+                held().store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "unable to record stored graphics", e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cn.jystudio.bluetooth.escpos;
+
+import cn.jystudio.bluetooth.escpos.command.sdk.RasterEncoder;
+import com.facebook.react.bridge.ReadableMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * What a printer model accepts, so output can be encoded for it instead of for
+ * the lowest common denominator. Set per printer with setPrinterProfile, printers
+ * without one get the conservative defaults.
+ */
+public class PrinterProfile {
+    // GS v 0 takes at most 2303 rows, GS ( L usually far fewer
+    private static final int MAX_RASTER_ROWS = 2303;
+
+    public static final PrinterProfile DEFAULT = new PrinterProfile(null);
+
+    // framing of bitmaps, one of RasterEncoder.LINES, BLOCK, GRAPHICS
+    final int raster;
+    // rows per raster command in the block framings, rows per streamed band in all of them
+    final int rasterRows;
+    // feed over white rows and cut white right margins, needs ESC J to move by one dot row per unit
+    final boolean skipBlank;
+    // where registered graphics are stored, one of GraphicsStore.NV, DOWNLOAD, LEGACY
+    final int graphics;
+    // let the printer draw QR codes from GS ( k instead of sending them as bitmaps
+    final boolean nativeQr;
+
+    /**
+     * options: raster, rasterRows, skipBlank, graphics, nativeQr.
+     */
+    PrinterProfile(@Nullable ReadableMap options) {
+        int raster = RasterEncoder.LINES;
+        int rasterRows = RasterEncoder.BAND_ROWS;
+        boolean skipBlank = false;
+        int graphics = GraphicsStore.NV;
+        boolean nativeQr = false;
+        if (options != null) {
+            raster = options.hasKey("raster") ? options.getInt("raster") : RasterEncoder.LINES;
+            rasterRows = options.hasKey("rasterRows") ? options.getInt("rasterRows") : RasterEncoder.BAND_ROWS;
+            skipBlank = options.hasKey("skipBlank") && options.getBoolean("skipBlank");
+            graphics = options.hasKey("graphics") ? options.getInt("graphics") : GraphicsStore.NV;
+            nativeQr = options.hasKey("nativeQr") && options.getBoolean("nativeQr");
+        }
+        if (raster < RasterEncoder.LINES || raster > RasterEncoder.GRAPHICS) {
+            raster = RasterEncoder.LINES;
+        }
+        this.raster = raster;
+        this.rasterRows = Math.max(1, Math.min(MAX_RASTER_ROWS, rasterRows));
+        this.skipBlank = skipBlank;
+        this.graphics = graphics < GraphicsStore.NV || graphics > GraphicsStore.LEGACY ? GraphicsStore.NV : graphics;
+        this.nativeQr = nativeQr;
+    }
+
+    RasterEncoder rasterEncoder() {
+        return new RasterEncoder(raster, rasterRows).setSkipBlank(skipBlank);
+    }
+
+    /**
+     * What rasterEncoder() output depends on, as part of a RasterCache key.
+     */
+    String rasterKey() {
+        return raster + "/" + rasterRows + "/" + (skipBlank ? 1 : 0);
+    }
+}
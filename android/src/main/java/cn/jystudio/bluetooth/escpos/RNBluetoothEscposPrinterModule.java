@@ -1,36 +1,44 @@
 package cn.jystudio.bluetooth.escpos;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Typeface;
 import android.util.Base64;
 import android.util.Log;
-import android.text.Layout;
-import android.text.StaticLayout;
-import android.text.TextPaint;
 import android.text.TextUtils;
 import android.os.Build;
 import android.view.View;
-import android.graphics.Canvas;
-import android.graphics.Color;
 import cn.jystudio.bluetooth.BluetoothService;
 import cn.jystudio.bluetooth.BluetoothServiceStateObserver;
+import cn.jystudio.bluetooth.PendingResponse;
+import cn.jystudio.bluetooth.PrintJob;
+import cn.jystudio.bluetooth.PrinterResponse;
+import cn.jystudio.bluetooth.WriteJob;
 import cn.jystudio.bluetooth.escpos.command.sdk.Command;
-import cn.jystudio.bluetooth.escpos.command.sdk.PrintPicture;
+import cn.jystudio.bluetooth.escpos.command.sdk.Dither;
+import cn.jystudio.bluetooth.escpos.command.sdk.MatrixEncoder;
 import cn.jystudio.bluetooth.escpos.command.sdk.PrinterCommand;
+import cn.jystudio.bluetooth.escpos.command.sdk.RasterEncoder;
 import com.facebook.react.bridge.*;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.aztec.AztecWriter;
+import com.google.zxing.datamatrix.DataMatrixWriter;
+import com.google.zxing.pdf417.PDF417Writer;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.Encoder;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
         implements BluetoothServiceStateObserver {
@@ -40,10 +48,53 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
     public static final int WIDTH_80 = 576;
 
     private static final int CONTENT_SIDE_MARGIN = 20;
+    // rows a line of text takes at least, at WIDTH_58
+    private static final int MIN_TEXT_ROWS = 20;
+    // white dots between two document columns, at WIDTH_58
+    private static final int COLUMN_GAP = 8;
+    private static final long STATUS_TIMEOUT_MS = 2000;
+    private static final String RASTER_CACHE_DIR = "rastercache";
+    private static final String GRAPHICS_FILE = "storedgraphics.properties";
+    private static final long CODE_CACHE_MAX_BYTES = 256 * 1024;
+
+    // 2D barcodes print2DBarcode() draws
+    static final int SYMBOL_QR = 0;
+    static final int SYMBOL_PDF417 = 1;
+    static final int SYMBOL_DATA_MATRIX = 2;
+    static final int SYMBOL_AZTEC = 3;
 
     private final ReactApplicationContext reactContext;
     private int deviceWidth = WIDTH_58;
     private BluetoothService mService;
+    // printer the following calls go to, null for the last connected one
+    private volatile String mTarget;
+    // the job being built by beginJob(), the print calls append to it until commitJob()
+    private volatile PrintJob mJob;
+    // the receipt being laid out by openDocument(), sent as a whole by closeDocument()
+    private volatile ReceiptDocument mDocument;
+    private final Map<String, PrinterProfile> mProfiles = new ConcurrentHashMap<>();
+    // graphic definitions to record once the print job carrying them is done, by job id
+    private final Map<Integer, List<Runnable>> mDefinedOnDone = new ConcurrentHashMap<>();
+    // last alignment set through printerAlign(), trimmed rasters need it to be left
+    private volatile int mAlign;
+    // encoded images by content and render parameters, shared by all printers
+    private final RasterCache mRasterCache = new RasterCache(RasterCache.DEFAULT_MAX_BYTES);
+    // the same for QR codes and other symbols, kept apart so a large image does not push them out
+    private final RasterCache mCodeCache = new RasterCache(CODE_CACHE_MAX_BYTES);
+    // glyphs of printed text, drawn once per font
+    private final TextRasterizer mText = new TextRasterizer(TextRasterizer.DEFAULT_MAX_BYTES);
+    // registered images and which printers hold them
+    private final GraphicsStore mGraphics;
+
+    /**
+     * Decodes or draws an image and encodes it, only when its raster is not cached.
+     */
+    private interface RasterSource {
+        /**
+         * @return false if the image could not be made or the sink stopped the encoding
+         */
+        boolean encode(RasterEncoder encoder, int width, int leftPadding, RasterEncoder.BandSink sink);
+    }
 
     public RNBluetoothEscposPrinterModule(ReactApplicationContext reactContext,
                                           BluetoothService bluetoothService) {
@@ -51,6 +102,7 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
         this.reactContext = reactContext;
         this.mService = bluetoothService;
         this.mService.addStateObserver(this);
+        this.mGraphics = new GraphicsStore(new File(reactContext.getFilesDir(), GRAPHICS_FILE));
     }
 
     @Override
@@ -68,14 +120,22 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
 
     @ReactMethod
     public void printerInit(final Promise promise) {
-        if (sendDataByte(PrinterCommand.POS_Set_PrtInit())) promise.resolve(null);
-        else promise.reject("COMMAND_NOT_SEND");
+        try {
+            if (sendDataByte(PrinterCommand.POS_Set_PrtInit())) promise.resolve(null);
+            else promise.reject("COMMAND_NOT_SEND");
+        } finally {
+            endJob();
+        }
     }
 
     @ReactMethod
     public void printAndFeed(int feed, final Promise promise) {
-        if (sendDataByte(PrinterCommand.POS_Set_PrtAndFeedPaper(feed))) promise.resolve(null);
-        else promise.reject("COMMAND_NOT_SEND");
+        try {
+            if (sendDataByte(PrinterCommand.POS_Set_PrtAndFeedPaper(feed))) promise.resolve(null);
+            else promise.reject("COMMAND_NOT_SEND");
+        } finally {
+            endJob();
+        }
     }
 
     @ReactMethod
@@ -101,7 +161,10 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
     @ReactMethod
     public void printerAlign(int align, final Promise promise) {
         Log.d(TAG, "Align:" + align);
-        if (sendDataByte(PrinterCommand.POS_S_Align(align))) promise.resolve(null);
+        if (sendDataByte(PrinterCommand.POS_S_Align(align))) {
+            mAlign = align >= 48 ? align - 48 : align;
+            promise.resolve(null);
+        }
         else promise.reject("COMMAND_NOT_SEND");
     }
 
@@ -124,20 +187,10 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
             if (fonttype == 0) sendDataByte(Command.ESC_ExclamationMark);
 
             // ── UNIFIED BITMAP PATH ──────────────────────────────────────────────────
-            Bitmap bmp = null;
-            try { bmp = renderTextToBitmap(text, deviceWidth, false, fonttype > 0); }
-            catch (Exception e) { Log.e(TAG, "Bitmap rendering failed: " + e.getMessage()); }
-
-            if (bmp != null) {
-                try {
-                    byte[] data = PrintPicture.POS_PrintBMP(bmp, deviceWidth, 0, 0);
-                    if (data != null && sendDataByte(data)) { promise.resolve(null); return; }
-                } catch (Exception e) {
-                    Log.e(TAG, "Bitmap printing error: " + e.getMessage());
-                } finally {
-                    if (!bmp.isRecycled()) bmp.recycle();
-                }
-            }
+            try {
+                TextRasterizer.Block block = renderText(text, false, fonttype > 0);
+                if (block != null && sendText(block)) { promise.resolve(null); return; }
+            } catch (Exception e) { Log.e(TAG, "Bitmap printing error: " + e.getMessage()); }
 
             // ── FALLBACK ─────────────────────────────────────────────────────────────
             String toPrint = text;
@@ -156,6 +209,8 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
         } catch (Exception e) {
             Log.e(TAG, "printText error: " + e.getMessage());
             promise.reject("PRINT_ERROR", e.getMessage(), e);
+        } finally {
+            endJob();
         }
     }
 
@@ -236,85 +291,126 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
                 sendDataByte(PrinterCommand.POS_Set_Bold(fonttype > 0 ? 1 : 0));
                 if (fonttype == 0) sendDataByte(Command.ESC_ExclamationMark);
 
-                Bitmap bmp = null;
-                try { bmp = renderTextToBitmap(line, deviceWidth, false, fonttype > 0); }
-                catch (Exception e) { Log.e(TAG, "Column bitmap failed: " + e.getMessage()); }
-
-                if (bmp != null) {
-                    try {
-                        byte[] data = PrintPicture.POS_PrintBMP(bmp, deviceWidth, 0, 0);
-                        if (data != null && sendDataByte(data)) continue;
-                    } catch (Exception e) {
-                        Log.e(TAG, "Column bitmap print error: " + e.getMessage());
-                    } finally {
-                        if (!bmp.isRecycled()) bmp.recycle();
-                    }
-                }
+                try {
+                    TextRasterizer.Block block = renderText(line, false, fonttype > 0);
+                    if (block != null && sendText(block)) continue;
+                } catch (Exception e) { Log.e(TAG, "Column bitmap print error: " + e.getMessage()); }
                 if (containsArabicCharacters(line)) {
                     try {
                         if (sendDataByte(PrinterCommand.POS_Print_Text(line, "UTF-8", 0, widthTimes, heigthTimes, fonttype))) continue;
                     } catch (Exception e) { Log.e(TAG, "Column UTF-8 fallback failed: " + e.getMessage()); }
                     String asciiLine = line.replaceAll("[^\\x00-\\x7F]", "?");
                     if (!sendDataByte(PrinterCommand.POS_Print_Text(asciiLine, encoding, codepage, widthTimes, heigthTimes, fonttype))) {
-                        promise.reject("COMMAND_NOT_SEND", "Failed row: " + i); return;
+                        endJob(); promise.reject("COMMAND_NOT_SEND", "Failed row: " + i); return;
                     }
                 } else {
                     if (!sendDataByte(PrinterCommand.POS_Print_Text(line, encoding, codepage, widthTimes, heigthTimes, fonttype))) {
-                        promise.reject("COMMAND_NOT_SEND", "Failed row: " + i); return;
+                        endJob(); promise.reject("COMMAND_NOT_SEND", "Failed row: " + i); return;
                     }
                 }
             } catch (Exception e) { Log.e(TAG, "Column row " + i + " error: " + e.getMessage()); }
         }
+        endJob();
         promise.resolve(null);
     }
 
     @ReactMethod
     public void setWidth(int width) { deviceWidth = width; }
 
-    private boolean isOldAndroidVersion() {
-        return Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    /* Send the following calls to this connected printer, null for the last connected one */
+    @ReactMethod
+    public void setTarget(@Nullable String address) { mTarget = address; }
+
+    /**
+     * Describe what a printer accepts, null address for the default printer, null options to forget it.
+     * options: raster (RASTER_LINES, RASTER_BLOCK or RASTER_GRAPHICS), rasterRows, skipBlank.
+     */
+    @ReactMethod
+    public void setPrinterProfile(@Nullable String address, @Nullable ReadableMap options, final Promise promise) {
+        if (address == null) address = mService.getDefaultAddress();
+        if (address == null) { promise.reject("NOT_CONNECTED", "No printer to set a profile for"); return; }
+        if (options == null) mProfiles.remove(address);
+        else mProfiles.put(address, new PrinterProfile(options));
+        promise.resolve(null);
     }
 
-    private Bitmap.Config getOptimalBitmapConfig() {
-        return isOldAndroidVersion() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    private PrinterProfile profile(@Nullable String address) {
+        if (address == null) address = mService.getDefaultAddress();
+        PrinterProfile profile = address != null ? mProfiles.get(address) : null;
+        return profile != null ? profile : PrinterProfile.DEFAULT;
     }
 
-    /** Single source of truth for font size across ALL languages. */
-    private int getOptimalTextSize() {
-        return isOldAndroidVersion() ? 16 : 18;
+    /**
+     * Collect the following print calls into one job until commitJob().
+     * options: priority (0 high, 1 normal), deadline (ms from now after which the rest is dropped).
+     */
+    @ReactMethod
+    public void beginJob(@Nullable ReadableMap options, final Promise promise) {
+        if (mJob != null) { promise.reject("JOB_OPEN", "Commit or cancel job " + mJob.getId() + " first"); return; }
+        int priority = PrintJob.PRIORITY_NORMAL;
+        long deadline = 0;
+        if (options != null) {
+            priority = options.hasKey("priority") ? options.getInt("priority") : PrintJob.PRIORITY_NORMAL;
+            deadline = options.hasKey("deadline") ? System.currentTimeMillis() + options.getInt("deadline") : 0;
+        }
+        mJob = new PrintJob(priority, deadline);
+        promise.resolve(mJob.getId());
     }
 
-    private Bitmap createCenteredArabicBitmap(String text, int targetWidth, TextPaint paint) {
-        try {
-            int bmpWidth = Math.min(targetWidth, 384);
-            int bmpHeight = isOldAndroidVersion() ? 28 : 34;
-            Bitmap bitmap = Bitmap.createBitmap(bmpWidth, bmpHeight, getOptimalBitmapConfig());
-            Canvas canvas = new Canvas(bitmap);
-            canvas.drawColor(Color.WHITE);
-            float x = Math.max(0, (bmpWidth - paint.measureText(text)) / 2);
-            canvas.drawText(text, x, isOldAndroidVersion() ? 22 : 24, paint);
-            return bitmap;
-        } catch (Exception e) {
-            Log.e(TAG, "createCenteredArabicBitmap error: " + e.getMessage());
-            return null;
+    /* Queue the job built since beginJob(), resolves with its id; progress comes as EVENT_JOB_PROGRESS */
+    @ReactMethod
+    public void commitJob(final Promise promise) {
+        PrintJob job = mJob;
+        mJob = null;
+        if (job == null) { promise.reject("NO_JOB"); return; }
+        if (mService.submit(mTarget, job)) promise.resolve(job.getId());
+        else promise.reject("COMMAND_NOT_SEND");
+    }
+
+    /* Stop a job after the part in flight, or drop the one still being built */
+    @ReactMethod
+    public void cancelJob(int jobId, final Promise promise) {
+        PrintJob open = mJob;
+        if (open != null && open.getId() == jobId) {
+            mJob = null;
+            mDefinedOnDone.remove(jobId);
+            promise.resolve(true);
+            return;
         }
+        promise.resolve(mService.cancelJob(jobId));
+    }
+
+    private boolean isOldAndroidVersion() {
+        return Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
+    /** Single source of truth for font size across ALL languages. */
+    private int getOptimalTextSize() {
+        return isOldAndroidVersion() ? 16 : 18;
     }
 
     @ReactMethod
     public void printPic(String base64encodeStr, @Nullable ReadableMap options) {
-        int width = 0, leftPadding = 0;
+        int width = 0, leftPadding = 0, dither = Dither.THRESHOLD;
         if (options != null) {
             width = options.hasKey("width") ? options.getInt("width") : 0;
             leftPadding = options.hasKey("left") ? options.getInt("left") : 0;
+            dither = options.hasKey("dither") ? options.getInt("dither") : Dither.THRESHOLD;
         }
         if (width > deviceWidth || width == 0) width = deviceWidth;
-        byte[] bytes = Base64.decode(base64encodeStr, Base64.DEFAULT);
-        Bitmap mBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        if (mBitmap != null) sendDataByte(PrintPicture.POS_PrintBMP(mBitmap, width, 0, leftPadding));
+        try {
+            byte[] bytes = Base64.decode(base64encodeStr, Base64.DEFAULT);
+            sendBitmap(mJob, mTarget, mRasterCache, RasterCache.digest(bytes), new BitmapDecoder(bytes)::encode,
+                    width, leftPadding, dither);
+        } finally {
+            endJob();
+        }
     }
 
     @ReactMethod
     public void printPicFromURL(final String picUrl, @Nullable final ReadableMap options, final Promise promise) {
+        final String target = mTarget;
+        final PrintJob job = mJob;
         new Thread(() -> {
             HttpURLConnection connection = null; InputStream input = null;
             try {
@@ -326,31 +422,89 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
                     promise.reject("URL_ERROR", "Response: " + connection.getResponseCode()); return;
                 }
                 input = connection.getInputStream();
-                Bitmap mBitmap = BitmapFactory.decodeStream(input);
-                if (mBitmap == null) { promise.reject("DECODE_ERROR", "Failed to decode image"); return; }
-                int width = 0, leftPadding = 0;
+                byte[] bytes = readAll(input);
+                // only the header is decoded here, the pixels only if the raster is not cached
+                BitmapDecoder decoder = new BitmapDecoder(bytes);
+                if (!decoder.isImage()) { promise.reject("DECODE_ERROR", "Failed to decode image"); return; }
+                int width = 0, leftPadding = 0, dither = Dither.THRESHOLD;
                 if (options != null) {
                     width = options.hasKey("width") ? options.getInt("width") : 0;
                     leftPadding = options.hasKey("left") ? options.getInt("left") : 0;
+                    dither = options.hasKey("dither") ? options.getInt("dither") : Dither.THRESHOLD;
                 }
                 if (width > deviceWidth || width == 0) width = deviceWidth;
-                byte[] data = PrintPicture.POS_PrintBMP(mBitmap, width, 0, leftPadding);
-                if (sendDataByte(data)) promise.resolve(null);
-                else promise.reject("COMMAND_NOT_SEND", "Failed to send image");
-                if (!mBitmap.isRecycled()) mBitmap.recycle();
+                // JS may commit the job while this runs, so the image goes in whole or not at all
+                PrintJob staged = job != null ? new PrintJob(job.getPriority(), 0) : null;
+                if (!sendBitmap(staged, target, mRasterCache, RasterCache.digest(bytes),
+                        decoder::encode, width, leftPadding, dither)) {
+                    promise.reject("COMMAND_NOT_SEND", "Failed to send image"); return;
+                }
+                if (staged != null) {
+                    try {
+                        job.append(staged);
+                    } catch (IllegalStateException e) {
+                        promise.reject("JOB_COMMITTED", "Job " + job.getId() + " was committed before the image loaded");
+                        return;
+                    }
+                }
+                promise.resolve(null);
             } catch (Exception e) {
                 Log.e(TAG, "printPicFromURL error: " + e.getMessage());
                 promise.reject("PRINT_ERROR", e.getMessage(), e);
             } finally {
                 try { if (input != null) input.close(); if (connection != null) connection.disconnect(); }
                 catch (Exception e) { Log.e(TAG, "Connection close error: " + e.getMessage()); }
+                endJob(job, target);
             }
         }).start();
     }
 
+    /**
+     * Encode an image the way printPic would for the target printer, without sending it, and
+     * resolve with the average encoding time in ms and the bytes it came to.
+     * options: the printPic options, repeat (10 by default).
+     */
+    @ReactMethod
+    public void measureRaster(final String base64encodeStr, @Nullable final ReadableMap options, final Promise promise) {
+        final PrinterProfile profile = profile(mTarget);
+        new Thread(() -> {
+            int width = 0, leftPadding = 0, dither = Dither.THRESHOLD, repeat = 10;
+            if (options != null) {
+                width = options.hasKey("width") ? options.getInt("width") : 0;
+                leftPadding = options.hasKey("left") ? options.getInt("left") : 0;
+                dither = options.hasKey("dither") ? options.getInt("dither") : Dither.THRESHOLD;
+                repeat = options.hasKey("repeat") ? options.getInt("repeat") : 10;
+            }
+            if (width > deviceWidth || width == 0) width = deviceWidth;
+            byte[] bytes = Base64.decode(base64encodeStr, Base64.DEFAULT);
+            Bitmap bitmap = new BitmapDecoder(bytes).decode(width);
+            if (bitmap == null) { promise.reject("DECODE_ERROR", "Failed to decode image"); return; }
+            final long[] size = new long[1];
+            RasterEncoder.BandSink counter = new RasterEncoder.BandSink() {
+                @Override
+                public boolean onBand(byte[] band, int rowSize) {
+                    size[0] += band.length;
+                    return true;
+                }
+            };
+            repeat = Math.max(1, repeat);
+            long started = System.nanoTime();
+            for (int i = 0; i < repeat; i++) {
+                size[0] = 0;
+                profile.rasterEncoder().setDither(dither).encode(bitmap, width, 0, leftPadding, counter);
+            }
+            WritableMap result = Arguments.createMap();
+            result.putDouble("ms", (System.nanoTime() - started) / 1e6 / repeat);
+            result.putDouble("bytes", size[0]);
+            bitmap.recycle();
+            promise.resolve(result);
+        }).start();
+    }
+
     @ReactMethod
     public void selfTest(@Nullable Callback cb) {
         boolean result = sendDataByte(PrinterCommand.POS_Set_PrtSelfTest());
+        endJob();
         if (cb != null) cb.invoke(result);
     }
 
@@ -367,33 +521,334 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
     }
 
     @ReactMethod
-    public void printQRCode(String content, int size, int correctionLevel, final Promise promise) {
+    public void printQRCode(final String content, final int size, final int correctionLevel, final Promise promise) {
         try {
-            Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
-            hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
-            hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.forBits(correctionLevel));
-            BitMatrix bitMatrix = new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, size, size, hints);
-            int width = bitMatrix.getWidth(), height = bitMatrix.getHeight();
-            int[] pixels = new int[width * height];
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++)
-                    pixels[y * width + x] = bitMatrix.get(x, y) ? 0xff000000 : 0xffffffff;
-            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-            byte[] data = PrintPicture.POS_PrintBMP(bitmap, size, 0, 0);
-            if (sendDataByte(data)) promise.resolve(null);
+            String key = RasterCache.digest("qr/" + size + "/" + correctionLevel + "/" + content);
+            if (profile(mTarget).nativeQr) {
+                String nativeKey = RasterCache.digest("gs(k/" + key);
+                RasterCache.Raster cached = mCodeCache.get(nativeKey);
+                byte[] command = cached != null ? cached.bands[0] : qrCommand(content, size, correctionLevel);
+                if (command != null) {
+                    if (cached == null) {
+                        RasterCache.Recorder recorder = new RasterCache.Recorder();
+                        recorder.add(command, 0);
+                        mCodeCache.put(nativeKey, recorder);
+                    }
+                    if (sendDataByte(command)) promise.resolve(null);
+                    else promise.reject("COMMAND_NOT_SEND");
+                    return;
+                }
+            }
+            boolean sent = sendBitmap(mJob, mTarget, mCodeCache, key, (encoder, width, leftPadding, sink) -> {
+                MatrixEncoder matrix = new MatrixEncoder(symbol(SYMBOL_QR, content, correctionLevel), width,
+                        quietZone(SYMBOL_QR));
+                return encoder.encodeRows(matrix.getBits(), matrix.getBytesPerLine(), matrix.getRows(), sink);
+            }, size, 0, Dither.THRESHOLD);
+            if (sent) promise.resolve(null);
             else promise.reject("COMMAND_NOT_SEND");
-        } catch (Exception e) { promise.reject(e.getMessage(), e); }
+        } catch (Exception e) {
+            promise.reject(e.getMessage(), e);
+        } finally {
+            endJob();
+        }
+    }
+
+    /**
+     * GS ( k with the module size that makes the code about as wide as the bitmap would be,
+     * null if the content does not fit a QR code the printer can store.
+     */
+    @Nullable
+    private static byte[] qrCommand(String content, int size, int correctionLevel) throws WriterException {
+        ErrorCorrectionLevel level = ErrorCorrectionLevel.forBits(correctionLevel);
+        Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
+        hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+        int modules = Encoder.encode(content, level, hints).getVersion().getDimensionForVersion();
+        // QRCodeWriter leaves a quiet zone of 4 modules on each side
+        int moduleSize = Math.max(1, Math.min(16, size / (modules + 8)));
+        return PrinterCommand.getQRCodeGSCommand(content, moduleSize, level.ordinal());
+    }
+
+    /**
+     * Print a 2D barcode drawn here, each module a square of whole dots as large as fits
+     * into size dots, centered there. type: SYMBOL_QR, SYMBOL_PDF417, SYMBOL_DATA_MATRIX or
+     * SYMBOL_AZTEC. options: errorCorrection (QR: as for printQRCode, PDF417: level 0 to 8,
+     * Aztec: percent), left unset for the ZXing default.
+     */
+    @ReactMethod
+    public void print2DBarcode(final String content, final int type, final int size, @Nullable ReadableMap options,
+                               final Promise promise) {
+        int errorCorrection = -1;
+        if (options != null) {
+            errorCorrection = options.hasKey("errorCorrection") ? options.getInt("errorCorrection") : -1;
+        }
+        final int level = errorCorrection;
+        int width = Math.min(size, deviceWidth);
+        try {
+            String key = RasterCache.digest("2d/" + type + "/" + width + "/" + level + "/" + content);
+            boolean sent = sendBitmap(mJob, mTarget, mCodeCache, key, (encoder, w, leftPadding, sink) -> {
+                MatrixEncoder matrix = new MatrixEncoder(symbol(type, content, level), w, quietZone(type));
+                return encoder.encodeRows(matrix.getBits(), matrix.getBytesPerLine(), matrix.getRows(), sink);
+            }, width, 0, Dither.THRESHOLD);
+            if (sent) promise.resolve(null);
+            else promise.reject("COMMAND_NOT_SEND");
+        } catch (Exception e) {
+            promise.reject("PRINT_ERROR", e.getMessage(), e);
+        } finally {
+            endJob();
+        }
+    }
+
+    /**
+     * The modules of a symbol, one bit each and without a margin.
+     *
+     * @param errorCorrection as print2DBarcode takes it, -1 for the default
+     */
+    private static BitMatrix symbol(int type, String content, int errorCorrection) {
+        Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
+        hints.put(EncodeHintType.MARGIN, 0);
+        try {
+            switch (type) {
+                case SYMBOL_PDF417:
+                    hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+                    if (errorCorrection >= 0) hints.put(EncodeHintType.ERROR_CORRECTION, errorCorrection);
+                    return new PDF417Writer().encode(content, BarcodeFormat.PDF_417, 0, 0, hints);
+                case SYMBOL_DATA_MATRIX:
+                    return new DataMatrixWriter().encode(content, BarcodeFormat.DATA_MATRIX, 0, 0, hints);
+                case SYMBOL_AZTEC:
+                    hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+                    if (errorCorrection >= 0) hints.put(EncodeHintType.ERROR_CORRECTION, errorCorrection);
+                    return new AztecWriter().encode(content, BarcodeFormat.AZTEC, 0, 0, hints);
+                default:
+                    hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+                    if (errorCorrection >= 0) {
+                        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.forBits(errorCorrection));
+                    }
+                    return new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, 0, 0, hints);
+            }
+        } catch (WriterException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * White modules around a symbol, as its specification asks for.
+     */
+    private static int quietZone(int type) {
+        switch (type) {
+            case SYMBOL_PDF417:
+                return 2;
+            case SYMBOL_DATA_MATRIX:
+            case SYMBOL_AZTEC:
+                return 1;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Size the cache of encoded images and whether it survives restarts, resolves once
+     * rasters kept by an earlier run are read back.
+     * options: maxBytes (0 turns the cache off), persist.
+     */
+    @ReactMethod
+    public void setRasterCache(@Nullable final ReadableMap options, final Promise promise) {
+        new Thread(() -> {
+            long maxBytes = RasterCache.DEFAULT_MAX_BYTES;
+            boolean persist = false;
+            if (options != null) {
+                maxBytes = options.hasKey("maxBytes") ? (long) options.getDouble("maxBytes") : RasterCache.DEFAULT_MAX_BYTES;
+                persist = options.hasKey("persist") && options.getBoolean("persist");
+            }
+            mRasterCache.configure(maxBytes, persist ? new File(reactContext.getCacheDir(), RASTER_CACHE_DIR) : null);
+            promise.resolve(null);
+        }).start();
+    }
+
+    /**
+     * Register an image under a key for printGraphic(), resolves with its version. Printers get
+     * it stored once per version, in the memory their profile's "graphics" option names.
+     * options: width, dither, as for printPic.
+     */
+    @ReactMethod
+    public void registerGraphic(String key, String base64encodeStr, @Nullable ReadableMap options, final Promise promise) {
+        int width = 0, dither = Dither.THRESHOLD;
+        if (options != null) {
+            width = options.hasKey("width") ? options.getInt("width") : 0;
+            dither = options.hasKey("dither") ? options.getInt("dither") : Dither.THRESHOLD;
+        }
+        if (width > deviceWidth || width == 0) width = deviceWidth;
+        byte[] bytes = Base64.decode(base64encodeStr, Base64.DEFAULT);
+        Bitmap bitmap = new BitmapDecoder(bytes).decode(width);
+        if (bitmap == null) { promise.reject("DECODE_ERROR", "Failed to decode image"); return; }
+        // one GS v 0 block: the 8-byte header, then the packed rows the printer stores
+        final byte[][] block = new byte[1][];
+        new RasterEncoder(RasterEncoder.BLOCK, Integer.MAX_VALUE).setDither(dither).encode(bitmap, width, 0, 0,
+                new RasterEncoder.BandSink() {
+                    @Override
+                    public boolean onBand(byte[] band, int rowSize) {
+                        block[0] = band;
+                        return true;
+                    }
+                });
+        bitmap.recycle();
+        byte[] band = block[0];
+        int dots = ((band[4] & 0xff) + (band[5] & 0xff) * 256) * 8;
+        int rows = (band[6] & 0xff) + (band[7] & 0xff) * 256;
+        promise.resolve(mGraphics.register(key, Arrays.copyOfRange(band, 8, band.length), dots, rows));
+    }
+
+    /**
+     * Print a registered image, storing it in the printer first if it does not hold this version
+     * yet. Resolves with whether it had to be stored.
+     */
+    @ReactMethod
+    public void printGraphic(String key, final Promise promise) {
+        GraphicsStore.Graphic graphic = mGraphics.get(key);
+        if (graphic == null) { promise.reject("GRAPHIC_NOT_REGISTERED", "No graphic registered as " + key); return; }
+        String address = mTarget;
+        final String printer = address != null ? address : mService.getDefaultAddress();
+        if (printer == null) { promise.reject("NOT_CONNECTED", "No printer to print on"); return; }
+        final int store = profile(address).graphics;
+        try {
+            byte[] define = mGraphics.defineCommand(printer, graphic, store);
+            // a definition is never split, the printer would take half of it as an image
+            if (define != null) {
+                final String version = mGraphics.definitionVersion(graphic, store);
+                Runnable defined = () -> mGraphics.defined(printer, graphic, store, version);
+                PrintJob job = mJob;
+                if (job != null) {
+                    if (!sendRaster(job, address, define, 0)) { promise.reject("COMMAND_NOT_SEND"); return; }
+                    whenJobDone(job, defined);
+                } else {
+                    WriteJob written = mService.write(address, define);
+                    if (written.isFailed()) { promise.reject("COMMAND_NOT_SEND"); return; }
+                    whenWritten(written, defined);
+                }
+            }
+            if (sendDataByte(address, mGraphics.printCommand(graphic, store))) promise.resolve(define != null);
+            else promise.reject("COMMAND_NOT_SEND");
+        } finally {
+            endJob();
+        }
+    }
+
+    /**
+     * Run once the open job went out whole; dropped if it fails, is cancelled or expires.
+     */
+    private void whenJobDone(PrintJob job, Runnable action) {
+        List<Runnable> actions = mDefinedOnDone.get(job.getId());
+        if (actions == null) {
+            actions = new ArrayList<>();
+            mDefinedOnDone.put(job.getId(), actions);
+        }
+        actions.add(action);
+    }
+
+    /**
+     * Run once the bytes reached the printer; dropped if the write fails.
+     */
+    private void whenWritten(final WriteJob written, final Runnable action) {
+        new Thread(() -> {
+            try {
+                written.get();
+                action.run();
+            } catch (Exception e) {
+                Log.d(TAG, "definition not written: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /* Forget which registered images a printer holds, so printGraphic() stores them again */
+    @ReactMethod
+    public void forgetGraphics(@Nullable String address, final Promise promise) {
+        if (address == null) address = mService.getDefaultAddress();
+        if (address != null) mGraphics.forget(address, false);
+        promise.resolve(null);
+    }
+
+    /* Resolves with the raster cache counters: hits, misses, evictions, count, bytes */
+    @ReactMethod
+    public void getRasterCacheStats(final Promise promise) {
+        promise.resolve(cacheStats(mRasterCache));
+    }
+
+    @ReactMethod
+    public void clearRasterCache(final Promise promise) {
+        mRasterCache.clear();
+        promise.resolve(null);
+    }
+
+    /**
+     * Size the cache of encoded QR codes and 2D barcodes, bitmaps and GS ( k commands alike.
+     * options: maxBytes (256 KB by default, 0 turns the cache off).
+     */
+    @ReactMethod
+    public void setCodeCache(@Nullable ReadableMap options, final Promise promise) {
+        long maxBytes = CODE_CACHE_MAX_BYTES;
+        if (options != null) {
+            maxBytes = options.hasKey("maxBytes") ? (long) options.getDouble("maxBytes") : CODE_CACHE_MAX_BYTES;
+        }
+        mCodeCache.configure(maxBytes, null);
+        promise.resolve(null);
+    }
+
+    /* Resolves with the code cache counters, as getRasterCacheStats() */
+    @ReactMethod
+    public void getCodeCacheStats(final Promise promise) {
+        promise.resolve(cacheStats(mCodeCache));
+    }
+
+    @ReactMethod
+    public void clearCodeCache(final Promise promise) {
+        mCodeCache.clear();
+        promise.resolve(null);
+    }
+
+    private static WritableMap cacheStats(RasterCache cache) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("hits", cache.getHits());
+        stats.putDouble("misses", cache.getMisses());
+        stats.putDouble("evictions", cache.getEvictions());
+        stats.putInt("count", cache.getCount());
+        stats.putDouble("bytes", cache.getBytes());
+        return stats;
+    }
+
+    /**
+     * Real-time status (DLE EOT n), resolves with the status byte.
+     * n: 1 printer, 2 offline cause, 3 error cause, 4 paper roll sensor.
+     */
+    @ReactMethod
+    public void queryStatus(final int n, final Promise promise) {
+        if (n < 1 || n > 4) { promise.reject("INVALID_STATUS_TYPE"); return; }
+        byte[] command = Arrays.copyOf(Command.DLE_eot, Command.DLE_eot.length);
+        command[2] = (byte) n;
+        final PendingResponse pending = mService.query(mTarget, command, PrinterResponse.TYPE_REALTIME_STATUS);
+        if (pending == null) { promise.reject("COMMAND_NOT_SEND"); return; }
+        new Thread(() -> {
+            try {
+                PrinterResponse response = pending.await(STATUS_TIMEOUT_MS);
+                if (response != null) promise.resolve(response.getStatus());
+                else promise.reject("STATUS_TIMEOUT", "Printer did not answer DLE EOT " + n);
+            } catch (InterruptedException e) {
+                promise.reject("STATUS_TIMEOUT", e);
+            }
+        }).start();
     }
 
     @ReactMethod
     public void printBarCode(String str, int nType, int nWidthX, int nHeight, int nHriFontType, int nHriFontPosition) {
-        sendDataByte(PrinterCommand.getBarCodeCommand(str, nType, nWidthX, nHeight, nHriFontType, nHriFontPosition));
+        try {
+            sendDataByte(PrinterCommand.getBarCodeCommand(str, nType, nWidthX, nHeight, nHriFontType, nHriFontPosition));
+        } finally {
+            endJob();
+        }
     }
 
     @ReactMethod
     public void openDrawer(int nMode, int nTime1, int nTime2) {
-        try { sendDataByte(PrinterCommand.POS_Set_Cashbox(nMode, nTime1, nTime2)); }
+        // jumps ahead of queued print data and any open job
+        try { mService.write(mTarget, PrinterCommand.POS_Set_Cashbox(nMode, nTime1, nTime2), PrintJob.PRIORITY_HIGH); }
         catch (Exception e) { Log.d(TAG, e.getMessage()); }
     }
 
@@ -401,11 +856,104 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
     public void cutOnePoint() {
         try { sendDataByte(PrinterCommand.POS_Set_Cut(1)); }
         catch (Exception e) { Log.d(TAG, e.getMessage()); }
+        finally { endJob(); }
     }
 
     private boolean sendDataByte(byte[] data) {
-        if (data == null || mService.getState() != BluetoothService.STATE_CONNECTED) return false;
-        mService.write(data); return true;
+        return sendDataByte(mTarget, data);
+    }
+
+    private boolean sendDataByte(@Nullable String address, byte[] data) {
+        if (data == null) return false;
+        PrintJob job = mJob;
+        if (job != null) {
+            job.append(data);
+            return true;
+        }
+        // fails by itself when not connected, but queues while the printer reconnects
+        return !mService.write(address, data).isFailed();
+    }
+
+    /**
+     * Encode the bitmap band by band, framed the way the printer's profile asks for.
+     * Each band is queued before the next one is encoded so the printer starts on
+     * the top while the rest is still rendering.
+     *
+     * @param cache   where the raster is looked up and kept
+     * @param content digest of the image content to look its raster up by, null to bypass the cache
+     */
+    private boolean sendBitmap(@Nullable final PrintJob job, @Nullable final String address,
+                               @Nullable RasterCache cache, @Nullable String content,
+                               RasterSource source, int width, int leftPadding, int dither) {
+        PrinterProfile profile = profile(address);
+        // rows cut short would each be aligned on their own, so the image is aligned by white dots on its left
+        boolean realign = profile.skipBlank && mAlign != 0;
+        if (realign) {
+            int raster = ((width + 7) / 8) * 8 + ((leftPadding + 7) / 8) * 8;
+            leftPadding += Math.max(0, deviceWidth - raster) * mAlign / 2 / 8 * 8;
+        }
+        String key = cache == null || content == null ? null : RasterCache.digest(content + "/" + width + "/" + leftPadding
+                + "/" + dither + "/" + profile.rasterKey());
+        RasterCache.Raster cached = key != null ? cache.get(key) : null;
+        boolean sent = !realign || sendRaster(job, address, PrinterCommand.POS_S_Align(0), 0);
+        if (sent && cached != null) {
+            for (int i = 0; i < cached.bands.length && sent; i++) {
+                sent = sendRaster(job, address, cached.bands[i], cached.rowSizes[i]);
+            }
+        } else if (sent) {
+            final RasterCache.Recorder recorder = key != null ? new RasterCache.Recorder() : null;
+            sent = source.encode(profile.rasterEncoder().setDither(dither), width, leftPadding,
+                    new RasterEncoder.BandSink() {
+                        @Override
+                        public boolean onBand(byte[] band, int rowSize) {
+                            if (recorder != null) recorder.add(band, rowSize);
+                            return sendRaster(job, address, band, rowSize);
+                        }
+                    });
+            // only a raster that went out whole is worth keeping
+            if (sent && recorder != null) cache.put(key, recorder);
+        }
+        if (realign) sent &= sendRaster(job, address, PrinterCommand.POS_S_Align(mAlign), 0);
+        return sent;
+    }
+
+    /**
+     * Raster rows go into a job in row-aligned parts, so cancelling never cuts a row.
+     */
+    private boolean sendRaster(@Nullable PrintJob job, @Nullable String address, byte[] data, int rowSize) {
+        if (job == null) return sendDataByte(address, data);
+        try {
+            job.append(data, rowSize);
+            return true;
+        } catch (IllegalStateException e) {
+            // the job was committed already
+            Log.e(TAG, e.getMessage());
+            return false;
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) != -1) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Flush whatever the writer is still coalescing for the call that just finished. The flush
+     * also ends the call's job in the spool, so every call is resent or replayed on its own.
+     */
+    private void endJob() {
+        endJob(mJob, mTarget);
+    }
+
+    /**
+     * @param job the job the call went into, read when the call started
+     */
+    private void endJob(@Nullable PrintJob job, @Nullable String address) {
+        // an open job is flushed as a whole on commit
+        if (job == null) mService.flush(address);
     }
 
     private static boolean isChinese(char c) {
@@ -431,110 +979,37 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
         return false;
     }
 
-    private Bitmap renderTextToBitmap(String text, int targetWidth, boolean bold) {
-        return renderTextToBitmap(text, targetWidth, false, bold);
-    }
-
     /**
-     * Render any text into a printer-width bitmap.
-     *
-     * CENTERING FIX:
-     *   StaticLayout with ALIGN_CENTER already centres every line within its layout
-     *   width (== bmpWidth for centered rows). Previously we also translated the
-     *   canvas by (bmpWidth - textWidth) / 2, which double-shifted English text to
-     *   the right of centre. That extra translation has been removed.
+     * Render any text into rows the width of the paper.
      *
-     *   Rule: canvas is only ever translated for non-centered content rows
-     *   (by CONTENT_SIDE_MARGIN to inset key-value lines from the paper edge).
+     * Text used to be drawn by a StaticLayout into a WIDTH_58 bitmap and scaled to
+     * the paper; it is now composed from cached glyphs at the printed size instead.
+     * Centred rows are centred across the whole width, other rows are inset by
+     * CONTENT_SIDE_MARGIN and start on the side their paragraph direction starts.
      */
-    private Bitmap renderTextToBitmap(String text, int targetWidth, boolean center, boolean bold) {
+    @Nullable
+    private TextRasterizer.Block renderText(String text, boolean center, boolean bold) {
         if (text == null || text.trim().isEmpty()) return null;
-        try {
-            final int sideMargin = center ? 0 : CONTENT_SIDE_MARGIN;
-            final int contentWidth = targetWidth - sideMargin * 2;
-
-            TextPaint paint = new TextPaint();
-            paint.setAntiAlias(false);
-            paint.setColor(Color.BLACK);
-            paint.setTextSize(getOptimalTextSize());
-            paint.setTypeface(Typeface.create(Typeface.SANS_SERIF, bold ? Typeface.BOLD : Typeface.NORMAL));
-            paint.setFakeBoldText(bold);
-            paint.setStrokeWidth(0);
-            paint.setLinearText(true);
-            paint.setSubpixelText(false);
-
-            StaticLayout layout = null;
-            try {
-                layout = new StaticLayout(text, paint, contentWidth,
-                        center ? Layout.Alignment.ALIGN_CENTER : Layout.Alignment.ALIGN_NORMAL,
-                        1.0f, 0f, false);
-            } catch (Exception e) {
-                Log.e(TAG, "StaticLayout failed: " + e.getMessage());
-                if (center) return createCenteredArabicBitmap(text, targetWidth, paint);
-                return createSimpleTextBitmap(text, targetWidth, paint, false);
-            }
-
-            if (layout == null) {
-                if (center) return createCenteredArabicBitmap(text, targetWidth, paint);
-                return createSimpleTextBitmap(text, targetWidth, paint, false);
-            }
-
-            int bmpWidth = Math.min(targetWidth, 384);
-            int bmpHeight = Math.max(layout.getHeight(), 20);
-
-            Runtime rt = Runtime.getRuntime();
-            long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
-            if ((long) bmpWidth * bmpHeight * 2 > available * 0.5) {
-                if (center) return createCenteredArabicBitmap(text, targetWidth, paint);
-                return createSimpleTextBitmap(text, targetWidth, paint, false);
-            }
-
-            Bitmap bitmap = null;
-            try {
-                bitmap = Bitmap.createBitmap(bmpWidth, bmpHeight, getOptimalBitmapConfig());
-                if (bitmap == null) return createSimpleTextBitmap(text, targetWidth, paint, center);
-
-                Canvas canvas = new Canvas(bitmap);
-                canvas.drawColor(Color.WHITE);
-                canvas.save();
+        int dots = ((deviceWidth + 7) / 8) * 8;
+        float scale = textScale();
+        TextRasterizer.Font font = mText.font(Math.round(getOptimalTextSize() * scale), bold);
+        int margin = center ? 0 : Math.round(CONTENT_SIDE_MARGIN * scale);
+        return mText.render(text, font, dots, margin,
+                center ? TextRasterizer.ALIGN_CENTER : TextRasterizer.ALIGN_NORMAL, Math.round(MIN_TEXT_ROWS * scale));
+    }
 
-                if (!center) {
-                    // Non-centred rows: indent from paper edge only
-                    canvas.translate(sideMargin, 0);
-                }
-                // Centred rows: NO translation — StaticLayout ALIGN_CENTER handles it.
-                // Adding a translation here was causing English header text to appear
-                // shifted right of centre (double-centering bug).
-
-                layout.draw(canvas);
-                canvas.restore();
-                return bitmap;
-            } catch (OutOfMemoryError e) {
-                Log.e(TAG, "OOM: " + e.getMessage());
-                if (bitmap != null && !bitmap.isRecycled()) bitmap.recycle();
-                if (center) return createCenteredArabicBitmap(text, targetWidth, paint);
-                return createSimpleTextBitmap(text, targetWidth, paint, false);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "renderTextToBitmap error: " + e.getMessage());
-            return null;
-        }
+    /**
+     * Text is sized for WIDTH_58 and grows with wider paper.
+     */
+    private float textScale() {
+        return (float) (((deviceWidth + 7) / 8) * 8) / Math.min(deviceWidth, WIDTH_58);
     }
 
-    private Bitmap createSimpleTextBitmap(String text, int targetWidth, TextPaint paint, boolean center) {
-        try {
-            int bmpWidth = Math.min(targetWidth, 384);
-            int bmpHeight = isOldAndroidVersion() ? 28 : 34;
-            Bitmap bitmap = Bitmap.createBitmap(bmpWidth, bmpHeight, getOptimalBitmapConfig());
-            Canvas canvas = new Canvas(bitmap);
-            canvas.drawColor(Color.WHITE);
-            float x = center ? Math.max(0, (bmpWidth - paint.measureText(text)) / 2) : CONTENT_SIDE_MARGIN;
-            canvas.drawText(text, x, isOldAndroidVersion() ? 22 : 24, paint);
-            return bitmap;
-        } catch (Exception e) {
-            Log.e(TAG, "createSimpleTextBitmap error: " + e.getMessage());
-            return null;
-        }
+    private boolean sendText(final TextRasterizer.Block block) {
+        return sendBitmap(mJob, mTarget, null, null,
+                (encoder, width, leftPadding, sink) ->
+                        encoder.encodeRows(block.getBits(), block.getBytesPerLine(), block.getRows(), sink),
+                deviceWidth, 0, Dither.THRESHOLD);
     }
 
     /**
@@ -560,20 +1035,10 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
             if (text.startsWith("##BITMAP##")) text = text.replace("##BITMAP##", "");
 
             // ── UNIFIED BITMAP PATH ──────────────────────────────────────────────────
-            Bitmap bmp = null;
-            try { bmp = renderTextToBitmap(text, deviceWidth, true, fonttype > 0); }
-            catch (Exception e) { Log.e(TAG, "Centered bitmap failed: " + e.getMessage()); }
-
-            if (bmp != null) {
-                try {
-                    byte[] data = PrintPicture.POS_PrintBMP(bmp, deviceWidth, 0, 0);
-                    if (data != null && sendDataByte(data)) { promise.resolve(null); return; }
-                } catch (Exception e) {
-                    Log.e(TAG, "Centered bitmap print error: " + e.getMessage());
-                } finally {
-                    if (!bmp.isRecycled()) bmp.recycle();
-                }
-            }
+            try {
+                TextRasterizer.Block block = renderText(text, true, fonttype > 0);
+                if (block != null && sendText(block)) { promise.resolve(null); return; }
+            } catch (Exception e) { Log.e(TAG, "Centered bitmap print error: " + e.getMessage()); }
 
             // ── FALLBACK ─────────────────────────────────────────────────────────────
             try {
@@ -603,11 +1068,153 @@ public class RNBluetoothEscposPrinterModule extends ReactContextBaseJavaModule
         } catch (Exception e) {
             Log.e(TAG, "printTextCentered error: " + e.getMessage());
             promise.reject("PRINT_ERROR", e.getMessage(), e);
+        } finally {
+            endJob();
         }
     }
 
+    /**
+     * Start laying out a receipt. The addDocument calls that follow stack text, columns,
+     * images and rules into one raster the width of the paper, and closeDocument() sends
+     * it as a single image, without per-row commands or padding. An open document is
+     * dropped.
+     * options: margin, white dots on either side of text, columns and rules.
+     */
+    @ReactMethod
+    public void openDocument(@Nullable ReadableMap options, final Promise promise) {
+        int margin = Math.round(CONTENT_SIDE_MARGIN * textScale());
+        if (options != null) {
+            margin = options.hasKey("margin") ? options.getInt("margin") : margin;
+        }
+        mDocument = new ReceiptDocument(mText, deviceWidth, margin);
+        promise.resolve(null);
+    }
+
+    /**
+     * options: align (ALIGN.LEFT, CENTER or RIGHT, the paragraph's own direction when
+     * left out), bold, size (text size at WIDTH_58, 18 by default).
+     */
+    @ReactMethod
+    public void addDocumentText(String text, @Nullable ReadableMap options, final Promise promise) {
+        ReceiptDocument document = mDocument;
+        if (document == null) { promise.reject("DOCUMENT_NOT_OPEN", "No document was opened"); return; }
+        int align = TextRasterizer.ALIGN_NORMAL;
+        if (options != null) {
+            align = options.hasKey("align") ? options.getInt("align") : TextRasterizer.ALIGN_NORMAL;
+        }
+        document.addText(text, documentFont(options), align);
+        promise.resolve(null);
+    }
+
+    /**
+     * A row of columns as printColumn() takes them, widths relative to their sum.
+     * options: bold, size, as addDocumentText().
+     */
+    @ReactMethod
+    public void addDocumentColumns(ReadableArray columnWidths, ReadableArray columnAligns, ReadableArray columnTexts,
+                                   @Nullable ReadableMap options, final Promise promise) {
+        ReceiptDocument document = mDocument;
+        if (document == null) { promise.reject("DOCUMENT_NOT_OPEN", "No document was opened"); return; }
+        if (columnWidths.size() != columnTexts.size() || columnWidths.size() != columnAligns.size()) {
+            promise.reject("COLUMN_WIDTHS_ALIGNS_AND_TEXTS_NOT_MATCH"); return;
+        }
+        int[] widths = new int[columnWidths.size()];
+        int[] aligns = new int[widths.length];
+        String[] texts = new String[widths.length];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = columnWidths.getInt(i);
+            aligns[i] = columnAligns.getInt(i);
+            texts[i] = columnTexts.getString(i);
+        }
+        document.addColumns(widths, aligns, texts, documentFont(options), Math.round(COLUMN_GAP * textScale()));
+        promise.resolve(null);
+    }
+
+    /* options: width, left, dither, as printPic() takes them */
+    @ReactMethod
+    public void addDocumentImage(String base64encodeStr, @Nullable ReadableMap options, final Promise promise) {
+        ReceiptDocument document = mDocument;
+        if (document == null) { promise.reject("DOCUMENT_NOT_OPEN", "No document was opened"); return; }
+        int width = 0, leftPadding = 0, dither = Dither.THRESHOLD;
+        if (options != null) {
+            width = options.hasKey("width") ? options.getInt("width") : 0;
+            leftPadding = options.hasKey("left") ? options.getInt("left") : 0;
+            dither = options.hasKey("dither") ? options.getInt("dither") : Dither.THRESHOLD;
+        }
+        if (width > deviceWidth || width == 0) width = deviceWidth;
+        byte[] bytes = Base64.decode(base64encodeStr, Base64.DEFAULT);
+        if (document.addImage(new BitmapDecoder(bytes), width, leftPadding, dither)) promise.resolve(null);
+        else promise.reject("DECODE_ERROR", "Failed to decode image");
+    }
+
+    /* options: thickness in dots (2 by default), space above and below it in dots (4 by default) */
+    @ReactMethod
+    public void addDocumentRule(@Nullable ReadableMap options, final Promise promise) {
+        ReceiptDocument document = mDocument;
+        if (document == null) { promise.reject("DOCUMENT_NOT_OPEN", "No document was opened"); return; }
+        int thickness = 2, space = 4;
+        if (options != null) {
+            thickness = options.hasKey("thickness") ? options.getInt("thickness") : 2;
+            space = options.hasKey("space") ? options.getInt("space") : 4;
+        }
+        document.addRule(thickness, space);
+        promise.resolve(null);
+    }
+
+    /* White rows, in dots */
+    @ReactMethod
+    public void addDocumentSpace(int rows, final Promise promise) {
+        ReceiptDocument document = mDocument;
+        if (document == null) { promise.reject("DOCUMENT_NOT_OPEN", "No document was opened"); return; }
+        document.addSpace(rows);
+        promise.resolve(null);
+    }
+
+    /**
+     * Send the document laid out since openDocument() through the raster encoder, band
+     * by band as the printer's profile frames images.
+     */
+    @ReactMethod
+    public void closeDocument(final Promise promise) {
+        final ReceiptDocument document = mDocument;
+        if (document == null) { promise.reject("DOCUMENT_NOT_OPEN", "No document was opened"); return; }
+        mDocument = null;
+        try {
+            boolean sent = document.getRows() == 0 || sendBitmap(mJob, mTarget, null, null,
+                    (encoder, width, leftPadding, sink) ->
+                            encoder.encodeRows(document.getBits(), document.getBytesPerLine(), document.getRows(), sink),
+                    deviceWidth, 0, Dither.THRESHOLD);
+            if (sent) promise.resolve(null);
+            else promise.reject("COMMAND_NOT_SEND");
+        } finally {
+            endJob();
+        }
+    }
+
+    private TextRasterizer.Font documentFont(@Nullable ReadableMap options) {
+        int size = getOptimalTextSize();
+        boolean bold = false;
+        if (options != null) {
+            size = options.hasKey("size") ? options.getInt("size") : size;
+            bold = options.hasKey("bold") && options.getBoolean("bold");
+        }
+        return mText.font(Math.round(size * textScale()), bold);
+    }
+
     @Override
-    public void onBluetoothServiceStateChanged(int state, Map<String, Object> boundle) {}
+    public void onBluetoothServiceStateChanged(int state, Map<String, Object> boundle) {
+        // the printer may have been switched off, taking its download graphics with it
+        if (state == BluetoothService.MESSAGE_CONNECTION_LOST && boundle != null) {
+            Object address = boundle.get(BluetoothService.DEVICE_ADDRESS);
+            if (address != null) mGraphics.forget((String) address, true);
+        } else if (state == BluetoothService.MESSAGE_JOB_PROGRESS && boundle != null) {
+            int jobState = (Integer) boundle.get("state");
+            if (jobState < PrintJob.STATE_DONE) return;
+            List<Runnable> actions = mDefinedOnDone.remove((Integer) boundle.get("jobId"));
+            if (actions == null || jobState != PrintJob.STATE_DONE) return;
+            for (Runnable action : actions) action.run();
+        }
+    }
 
     private static class ColumnSplitedString {
         private final int shorter; private final String str;
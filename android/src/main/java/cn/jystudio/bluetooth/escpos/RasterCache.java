@@ -0,0 +1,286 @@
+package cn.jystudio.bluetooth.escpos;
+
+import android.util.Log;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoded rasters of images that print over and over, such as store logos and
+ * QR codes, keyed by a hash of the image content and everything the encoding
+ * depends on. A hit hands back the bands as they were sent the first time, so
+ * the image is neither decoded nor encoded again.
+ * <p>
+ * Least recently used rasters are evicted once the total size would exceed the
+ * limit. With a directory set, every cached raster is mirrored to a file there
+ * and read back when the directory is set again after a restart.
+ * <p>
+ * File layout: int band count, then per band int row size, int length, bytes.
+ */
+public class RasterCache {
+    private static final String TAG = "RasterCache";
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    private static final String SUFFIX = ".raster";
+
+    /**
+     * The bands of one encoded image, never modified once cached.
+     */
+    public static class Raster {
+        final byte[][] bands;
+        final int[] rowSizes;
+        final long size;
+
+        Raster(byte[][] bands, int[] rowSizes) {
+            this.bands = bands;
+            this.rowSizes = rowSizes;
+            long size = 0;
+            for (byte[] band : bands) size += band.length;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Collects the bands of an image while it is being sent.
+     */
+    public static class Recorder {
+        private final List<byte[]> mBands = new ArrayList<byte[]>();
+        private final List<Integer> mRowSizes = new ArrayList<Integer>();
+
+        public void add(byte[] band, int rowSize) {
+            mBands.add(band);
+            mRowSizes.add(rowSize);
+        }
+
+        Raster finish() {
+            int[] rowSizes = new int[mRowSizes.size()];
+            for (int i = 0; i < rowSizes.length; i++) rowSizes[i] = mRowSizes.get(i);
+            return new Raster(mBands.toArray(new byte[mBands.size()][]), rowSizes);
+        }
+    }
+
+    // access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Raster> mRasters = new LinkedHashMap<String, Raster>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mBytes;
+    @Nullable
+    private File mDir;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * @param maxBytes total size of the cached rasters
+     */
+    public RasterCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxBytes total size of the cached rasters, 0 turns the cache off
+     * @param dir      directory the rasters are kept in across restarts, null to keep them in memory only
+     */
+    public synchronized void configure(long maxBytes, @Nullable File dir) {
+        mMaxBytes = Math.max(0, maxBytes);
+        if (dir != null && !dir.equals(mDir)) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e(TAG, "Cannot create cache directory " + dir);
+                dir = null;
+            }
+        }
+        File previous = mDir;
+        mDir = dir;
+        if (dir != null && !dir.equals(previous)) {
+            for (Map.Entry<String, Raster> entry : mRasters.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+            }
+            load(dir);
+        }
+        trim();
+    }
+
+    /**
+     * Read back the rasters a previous run left, most recently used first, as far as they fit.
+     */
+    private void load(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        List<String> keys = new ArrayList<String>();
+        List<Raster> rasters = new ArrayList<Raster>();
+        long bytes = mBytes;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) continue;
+            String key = name.substring(0, name.length() - SUFFIX.length());
+            Raster raster = mRasters.containsKey(key) || file.length() > mMaxBytes - bytes ? null : read(file);
+            if (raster == null) {
+                if (!mRasters.containsKey(key)) file.delete();
+                continue;
+            }
+            keys.add(key);
+            rasters.add(raster);
+            bytes += raster.size;
+        }
+        // the least recently used go in first so they are the first evicted
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            mRasters.put(keys.get(i), rasters.get(i));
+            mBytes += rasters.get(i).size;
+        }
+    }
+
+    @Nullable
+    public synchronized Raster get(String key) {
+        Raster raster = mRasters.get(key);
+        if (raster == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        if (mDir != null) new File(mDir, key + SUFFIX).setLastModified(System.currentTimeMillis());
+        return raster;
+    }
+
+    public synchronized void put(String key, Recorder recorder) {
+        Raster raster = recorder.finish();
+        if (raster.size > mMaxBytes) return;
+        Raster previous = mRasters.put(key, raster);
+        if (previous != null) mBytes -= previous.size;
+        mBytes += raster.size;
+        trim();
+        if (mDir != null && mRasters.containsKey(key)) write(key, raster);
+    }
+
+    public synchronized void clear() {
+        for (String key : mRasters.keySet()) remove(key);
+        mRasters.clear();
+        mBytes = 0;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Raster>> eldest = mRasters.entrySet().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, Raster> entry = eldest.next();
+            mBytes -= entry.getValue().size;
+            eldest.remove();
+            remove(entry.getKey());
+            mEvictions++;
+        }
+    }
+
+    private void remove(String key) {
+        if (mDir != null) new File(mDir, key + SUFFIX).delete();
+    }
+
+    private void write(String key, Raster raster) {
+        File file = new File(mDir, key + SUFFIX);
+        File temp = new File(mDir, key + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(raster.bands.length);
+                for (int i = 0; i < raster.bands.length; i++) {
+                    out.writeInt(raster.rowSizes[i]);
+                    out.writeInt(raster.bands[i].length);
+                    out.write(raster.bands[i]);
+                }
+            } finally {
+                out.close();
+            }
+            // a raster is either on disk whole or not at all
+            if (!temp.renameTo(file)) throw new IOException("Cannot rename " + temp);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write cached raster", e);
+            temp.delete();
+        }
+    }
+
+    @Nullable
+    private static Raster read(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int count = in.readInt();
+                if (count < 0 || count > file.length() / 8) return null;
+                byte[][] bands = new byte[count][];
+                int[] rowSizes = new int[count];
+                for (int i = 0; i < count; i++) {
+                    rowSizes[i] = in.readInt();
+                    int length = in.readInt();
+                    if (length < 0 || length > file.length()) return null;
+                    bands[i] = new byte[length];
+                    in.readFully(bands[i]);
+                }
+                return new Raster(bands, rowSizes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "dropping unreadable cached raster " + file.getName());
+            return null;
+        }
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized int getCount() {
+        return mRasters.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Hex SHA-1 of the content, short enough to be a file name.
+     */
+    public static String digest(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String digest(String content) {
+        return digest(content.getBytes(Charset.forName("UTF-8")));
+    }
+}
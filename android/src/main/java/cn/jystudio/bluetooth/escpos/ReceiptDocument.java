@@ -0,0 +1,154 @@
+package cn.jystudio.bluetooth.escpos;
+
+import cn.jystudio.bluetooth.escpos.command.sdk.RasterEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A whole receipt laid out into one run of packed raster rows, 1 for a black
+ * dot, which is encoded and sent as a single band stream once it is complete.
+ * Text, column rows, images and rules are stacked without gaps of their own:
+ * each text line is exactly as tall as its font and nothing is padded to a
+ * multiple of 8 rows, so the spacing on paper is the spacing laid out here.
+ */
+public class ReceiptDocument {
+    private final TextRasterizer mText;
+    // in dots, a multiple of 8
+    private final int mWidth;
+    private final int mBytesPerLine;
+    // white dots on either side of text, columns and rules
+    private final int mMargin;
+    private byte[] mBits;
+    private int mRows;
+
+    public ReceiptDocument(TextRasterizer text, int width, int margin) {
+        mText = text;
+        mWidth = ((width + 7) / 8) * 8;
+        mBytesPerLine = mWidth / 8;
+        mMargin = Math.max(0, Math.min(margin, (mWidth - 8) / 2));
+        mBits = new byte[mBytesPerLine * RasterEncoder.BAND_ROWS];
+    }
+
+    /**
+     * @param align one of the TextRasterizer alignments
+     */
+    public void addText(String text, TextRasterizer.Font font, int align) {
+        int width = mWidth - 2 * mMargin;
+        List<TextRasterizer.Line> lines = mText.layout(text, font, width);
+        int top = grow(lines.size() * font.height);
+        for (int i = 0; i < lines.size(); i++) {
+            TextRasterizer.draw(lines.get(i), align, mMargin, width, mBits, mBytesPerLine, top + i * font.height);
+        }
+    }
+
+    /**
+     * One row of columns side by side, each text wrapped within its column. The row
+     * is as tall as its longest column.
+     *
+     * @param shares the part of the width every column takes, relative to their sum
+     * @param gap    dots left white between two columns
+     */
+    public void addColumns(int[] shares, int[] aligns, String[] texts, TextRasterizer.Font font, int gap) {
+        int total = 0;
+        for (int share : shares) total += Math.max(0, share);
+        if (total == 0) return;
+        int width = mWidth - 2 * mMargin;
+        int[] lefts = new int[shares.length];
+        int[] widths = new int[shares.length];
+        List<List<TextRasterizer.Line>> cells = new ArrayList<List<TextRasterizer.Line>>();
+        int lines = 0;
+        int used = 0;
+        for (int i = 0; i < shares.length; i++) {
+            int next = used + Math.max(0, shares[i]);
+            lefts[i] = mMargin + (int) ((long) width * used / total);
+            int right = mMargin + (int) ((long) width * next / total);
+            widths[i] = Math.max(1, right - lefts[i] - (i < shares.length - 1 ? gap : 0));
+            used = next;
+            List<TextRasterizer.Line> cell = mText.layout(texts[i], font, widths[i]);
+            cells.add(cell);
+            lines = Math.max(lines, cell.size());
+        }
+        int top = grow(lines * font.height);
+        for (int i = 0; i < cells.size(); i++) {
+            List<TextRasterizer.Line> cell = cells.get(i);
+            for (int k = 0; k < cell.size(); k++) {
+                TextRasterizer.draw(cell.get(k), aligns[i], lefts[i], widths[i], mBits, mBytesPerLine,
+                        top + k * font.height);
+            }
+        }
+    }
+
+    /**
+     * @param left white dots on the left, from the edge of the paper as printPic takes it
+     * @return false if the image could not be decoded, nothing is added then
+     */
+    public boolean addImage(BitmapDecoder decoder, int width, int left, int dither) {
+        final int start = mRows;
+        // GS v 0 blocks: the 8-byte header, then the packed rows
+        RasterEncoder encoder = new RasterEncoder(RasterEncoder.BLOCK, RasterEncoder.BAND_ROWS).setDither(dither);
+        boolean added = decoder.encode(encoder, Math.min(width, mWidth), left, new RasterEncoder.BandSink() {
+            @Override
+            public boolean onBand(byte[] band, int rowSize) {
+                int bytesPerRow = (band[4] & 0xff) + (band[5] & 0xff) * 256;
+                int rows = (band[6] & 0xff) + (band[7] & 0xff) * 256;
+                int top = grow(rows);
+                int count = Math.min(bytesPerRow, mBytesPerLine);
+                for (int i = 0; i < rows; i++) {
+                    System.arraycopy(band, 8 + i * bytesPerRow, mBits, (top + i) * mBytesPerLine, count);
+                }
+                return true;
+            }
+        });
+        if (!added) {
+            Arrays.fill(mBits, start * mBytesPerLine, mRows * mBytesPerLine, (byte) 0);
+            mRows = start;
+        }
+        return added;
+    }
+
+    /**
+     * A black line across the width within the margins.
+     *
+     * @param space white rows above and below it
+     */
+    public void addRule(int thickness, int space) {
+        int top = grow(2 * space + thickness) + space;
+        for (int row = top; row < top + thickness; row++) {
+            int k = row * mBytesPerLine;
+            for (int x = mMargin; x < mWidth - mMargin; x++) {
+                mBits[k + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+            }
+        }
+    }
+
+    public void addSpace(int rows) {
+        grow(rows);
+    }
+
+    /**
+     * Add white rows at the bottom.
+     *
+     * @return the first of them
+     */
+    private int grow(int rows) {
+        int top = mRows;
+        int size = (top + Math.max(0, rows)) * mBytesPerLine;
+        if (size > mBits.length) mBits = Arrays.copyOf(mBits, Math.max(size, mBits.length * 2));
+        mRows = top + Math.max(0, rows);
+        return top;
+    }
+
+    public byte[] getBits() {
+        return mBits;
+    }
+
+    public int getBytesPerLine() {
+        return mBytesPerLine;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+}
@@ -0,0 +1,458 @@
+package cn.jystudio.bluetooth.escpos;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+
+import java.nio.ByteBuffer;
+import java.text.Bidi;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lays text out and draws it as packed raster rows, 1 for a black dot, the way
+ * RasterEncoder.encodeRows() takes them. Every glyph is drawn once per font
+ * into a monochrome cell as tall as a line and cached; a line is composed by
+ * copying the cells into the rows, without a StaticLayout or a Bitmap per line.
+ * <p>
+ * Text that needs no shaping is cached by code point. A word that does, Arabic
+ * for one, or that carries combining marks, is cached whole as the typeface
+ * shapes it, so letters stay joined. Lines are broken at spaces and put in
+ * visual order with java.text.Bidi, right to left runs word by word.
+ */
+public class TextRasterizer {
+    public static final int ALIGN_LEFT = 0;
+    public static final int ALIGN_CENTER = 1;
+    public static final int ALIGN_RIGHT = 2;
+    // left or right as the paragraph direction has it, as Layout.Alignment.ALIGN_NORMAL
+    public static final int ALIGN_NORMAL = 3;
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    // rough bookkeeping cost of a cached glyph besides its dots
+    private static final int ENTRY_BYTES = 64;
+    // drawn without anti-aliasing, so alpha is all or nothing
+    private static final int INK = 128;
+
+    /**
+     * A typeface at a size, with the metrics lines are laid out by.
+     */
+    public static class Font {
+        final TextPaint paint;
+        final String key;
+        // from the top of a line to the baseline
+        final int ascent;
+        final int height;
+
+        Font(int size, boolean bold) {
+            paint = new TextPaint();
+            paint.setAntiAlias(false);
+            paint.setColor(Color.BLACK);
+            paint.setTextSize(size);
+            paint.setTypeface(Typeface.create(Typeface.SANS_SERIF, bold ? Typeface.BOLD : Typeface.NORMAL));
+            paint.setFakeBoldText(bold);
+            paint.setStrokeWidth(0);
+            paint.setLinearText(true);
+            paint.setSubpixelText(false);
+            Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+            key = size + (bold ? "b" : "");
+            ascent = -metrics.ascent;
+            height = metrics.descent - metrics.ascent;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * A glyph or shaped word over the full height of a line.
+     */
+    static class Glyph {
+        final byte[] bits;
+        final int bytesPerLine;
+        // of the first dot column, from the pen position
+        final int left;
+        final float advance;
+
+        Glyph(byte[] bits, int bytesPerLine, int left, float advance) {
+            this.bits = bits;
+            this.bytesPerLine = bytesPerLine;
+            this.left = left;
+            this.advance = advance;
+        }
+    }
+
+    /**
+     * One line of glyphs in visual order, placed from its left edge.
+     */
+    public static class Line {
+        final Glyph[] glyphs;
+        final int[] xs;
+        final int width;
+        // the paragraph runs right to left
+        final boolean rtl;
+
+        Line(Glyph[] glyphs, int[] xs, int width, boolean rtl) {
+            this.glyphs = glyphs;
+            this.xs = xs;
+            this.width = width;
+            this.rtl = rtl;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+    }
+
+    /**
+     * Text drawn into rows of its own.
+     */
+    public static class Block {
+        private final byte[] mBits;
+        private final int mBytesPerLine;
+        private final int mRows;
+
+        Block(byte[] bits, int bytesPerLine, int rows) {
+            mBits = bits;
+            mBytesPerLine = bytesPerLine;
+            mRows = rows;
+        }
+
+        public byte[] getBits() {
+            return mBits;
+        }
+
+        public int getBytesPerLine() {
+            return mBytesPerLine;
+        }
+
+        public int getRows() {
+            return mRows;
+        }
+    }
+
+    /**
+     * A glyph of the paragraph being laid out, with the text it came from.
+     */
+    private static class Unit {
+        final String text;
+        final Glyph glyph;
+        final byte level;
+        final boolean space;
+
+        Unit(String text, Glyph glyph, int level, boolean space) {
+            this.text = text;
+            this.glyph = glyph;
+            this.level = (byte) level;
+            this.space = space;
+        }
+    }
+
+    private final Map<String, Font> mFonts = new HashMap<String, Font>();
+    // access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Glyph> mGlyphs = new LinkedHashMap<String, Glyph>(256, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes;
+    private final Rect mBounds = new Rect();
+
+    /**
+     * @param maxBytes total size of the cached glyphs
+     */
+    public TextRasterizer(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized Font font(int size, boolean bold) {
+        String key = size + (bold ? "b" : "");
+        Font font = mFonts.get(key);
+        if (font == null) {
+            font = new Font(size, bold);
+            mFonts.put(key, font);
+        }
+        return font;
+    }
+
+    /**
+     * Draw text into rows the given width, wrapped within the margins.
+     *
+     * @param minRows rows the block has at least, blank ones below the text
+     * @return rows rounded up to a multiple of 8, as encoded bitmaps are
+     */
+    public Block render(String text, Font font, int width, int margin, int align, int minRows) {
+        List<Line> lines = layout(text, font, width - 2 * margin);
+        int bytesPerLine = (width + 7) / 8;
+        int rows = (Math.max(minRows, lines.size() * font.height) + 7) / 8 * 8;
+        byte[] bits = new byte[bytesPerLine * rows];
+        for (int i = 0; i < lines.size(); i++) {
+            draw(lines.get(i), align, margin, width - 2 * margin, bits, bytesPerLine, i * font.height);
+        }
+        return new Block(bits, bytesPerLine, rows);
+    }
+
+    /**
+     * Break text into lines no wider than width, a new paragraph at every '\n'.
+     * Like StaticLayout, a trailing '\n' leaves an empty line behind.
+     */
+    public synchronized List<Line> layout(String text, Font font, int width) {
+        List<Line> lines = new ArrayList<Line>();
+        int start = 0;
+        while (true) {
+            int end = text.indexOf('\n', start);
+            layoutParagraph(text.substring(start, end < 0 ? text.length() : end), font, Math.max(1, width), lines);
+            if (end < 0) return lines;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Copy a line into rows, aligned within width dots from left.
+     */
+    public static void draw(Line line, int align, int left, int width, byte[] bits, int bytesPerLine, int top) {
+        if (align == ALIGN_NORMAL) align = line.rtl ? ALIGN_RIGHT : ALIGN_LEFT;
+        int x = left;
+        if (align == ALIGN_CENTER) x += Math.max(0, (width - line.width) / 2);
+        else if (align == ALIGN_RIGHT) x += Math.max(0, width - line.width);
+        for (int i = 0; i < line.glyphs.length; i++) {
+            blit(line.glyphs[i], x + line.xs[i], bits, bytesPerLine, top);
+        }
+    }
+
+    private static void blit(Glyph glyph, int x, byte[] bits, int bytesPerLine, int top) {
+        if (glyph.bytesPerLine == 0) return;
+        int rows = Math.min(glyph.bits.length / glyph.bytesPerLine, bits.length / bytesPerLine - top);
+        // x may be negative, >> and & keep rounding down
+        int first = x >> 3;
+        int shift = x & 7;
+        for (int r = 0; r < rows; r++) {
+            int src = r * glyph.bytesPerLine;
+            int dst = (top + r) * bytesPerLine;
+            for (int i = 0; i < glyph.bytesPerLine; i++) {
+                int b = glyph.bits[src + i] & 0xff;
+                if (b == 0) continue;
+                int k = first + i;
+                if (k >= 0 && k < bytesPerLine) bits[dst + k] |= (byte) (b >>> shift);
+                if (shift != 0 && k + 1 >= 0 && k + 1 < bytesPerLine) bits[dst + k + 1] |= (byte) (b << (8 - shift));
+            }
+        }
+    }
+
+    private void layoutParagraph(String paragraph, Font font, int width, List<Line> lines) {
+        char[] chars = paragraph.toCharArray();
+        Bidi bidi = Bidi.requiresBidi(chars, 0, chars.length)
+                ? new Bidi(paragraph, Bidi.DIRECTION_DEFAULT_LEFT_TO_RIGHT) : null;
+        boolean rtl = bidi != null && !bidi.baseIsLeftToRight();
+
+        List<Unit> line = new ArrayList<Unit>();
+        float lineWidth = 0;
+        List<Unit> word = new ArrayList<Unit>();
+        int i = 0;
+        while (i < chars.length) {
+            char c = chars[i];
+            int level = bidi != null ? bidi.getLevelAt(i) : 0;
+            if (c == ' ' || c == '\t') {
+                // spaces hang past the end of a line, they never break it
+                Unit space = new Unit(" ", glyph(font, " "), level, true);
+                line.add(space);
+                lineWidth += space.glyph.advance;
+                i++;
+                continue;
+            }
+            if (Character.isISOControl(c)) {
+                i++;
+                continue;
+            }
+            // a word, as far as it keeps the same direction
+            int end = i;
+            boolean shaped = false;
+            while (end < chars.length && chars[end] != ' ' && chars[end] != '\t'
+                    && !Character.isISOControl(chars[end])
+                    && (bidi == null || bidi.getLevelAt(end) == level)) {
+                shaped |= shaped(chars[end]);
+                end++;
+            }
+            word.clear();
+            float wordWidth = 0;
+            if (shaped) {
+                String text = paragraph.substring(i, end);
+                Unit unit = new Unit(text, glyph(font, text), level, false);
+                word.add(unit);
+                wordWidth = unit.glyph.advance;
+            } else {
+                for (int k = i; k < end; k += Character.charCount(paragraph.codePointAt(k))) {
+                    String text = paragraph.substring(k, k + Character.charCount(paragraph.codePointAt(k)));
+                    Unit unit = new Unit(text, glyph(font, text), level, false);
+                    word.add(unit);
+                    wordWidth += unit.glyph.advance;
+                }
+            }
+            i = end;
+
+            if (lineWidth + wordWidth > width && hasText(line)) {
+                lines.add(line(line, rtl, font));
+                line.clear();
+                lineWidth = 0;
+            }
+            if (lineWidth + wordWidth <= width) {
+                line.addAll(word);
+                lineWidth += wordWidth;
+                continue;
+            }
+            // wider than a line, broken wherever it has to be
+            for (Unit unit : word) {
+                while (unit != null) {
+                    if (lineWidth + unit.glyph.advance <= width || !hasText(line) && unit.text.length() == 1) {
+                        line.add(unit);
+                        lineWidth += unit.glyph.advance;
+                        unit = null;
+                    } else if (hasText(line)) {
+                        lines.add(line(line, rtl, font));
+                        line.clear();
+                        lineWidth = 0;
+                    } else {
+                        int count = Math.max(1, font.paint.breakText(unit.text, true, width, null));
+                        if (Character.isHighSurrogate(unit.text.charAt(count - 1))) count++;
+                        String head = unit.text.substring(0, Math.min(count, unit.text.length()));
+                        line.add(new Unit(head, glyph(font, head), unit.level, false));
+                        lines.add(line(line, rtl, font));
+                        line.clear();
+                        lineWidth = 0;
+                        String tail = unit.text.substring(head.length());
+                        unit = tail.isEmpty() ? null : new Unit(tail, glyph(font, tail), unit.level, false);
+                    }
+                }
+            }
+        }
+        lines.add(line(line, rtl, font));
+    }
+
+    private static boolean hasText(List<Unit> line) {
+        for (int i = line.size() - 1; i >= 0; i--) {
+            if (!line.get(i).space) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Place the units of a line, trailing spaces dropped, in visual order.
+     */
+    private Line line(List<Unit> units, boolean rtl, Font font) {
+        int count = units.size();
+        while (count > 0 && units.get(count - 1).space) count--;
+        Unit[] visual = units.subList(0, count).toArray(new Unit[count]);
+        byte[] levels = new byte[count];
+        boolean mixed = false;
+        for (int i = 0; i < count; i++) {
+            levels[i] = visual[i].level;
+            mixed |= levels[i] != 0;
+        }
+        if (mixed) Bidi.reorderVisually(levels, 0, visual, 0, count);
+
+        Glyph[] glyphs = new Glyph[count];
+        int[] xs = new int[count];
+        float pen = 0;
+        for (int i = 0; i < count; i++) {
+            Glyph glyph = visual[i].glyph;
+            // brackets face the other way within right to left text
+            if ((visual[i].level & 1) != 0 && visual[i].text.length() == 1) {
+                char mirror = mirror(visual[i].text.charAt(0));
+                if (mirror != 0) glyph = glyph(font, String.valueOf(mirror));
+            }
+            glyphs[i] = glyph;
+            xs[i] = Math.round(pen) + glyph.left;
+            pen += glyph.advance;
+        }
+        return new Line(glyphs, xs, Math.round(pen), rtl);
+    }
+
+    private static char mirror(char c) {
+        switch (c) {
+            case '(': return ')';
+            case ')': return '(';
+            case '[': return ']';
+            case ']': return '[';
+            case '{': return '}';
+            case '}': return '{';
+            case '<': return '>';
+            case '>': return '<';
+            default: return 0;
+        }
+    }
+
+    /**
+     * Whether a character has to be drawn with its word: combining marks and joiners,
+     * and the letters of scripts whose glyphs join or reorder within a word. Latin,
+     * Greek, Cyrillic, Hebrew, CJK and the like look the same a character at a time.
+     */
+    private static boolean shaped(char c) {
+        switch (Character.getType(c)) {
+            case Character.NON_SPACING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+                return true;
+            default:
+                break;
+        }
+        return c == 0x200C || c == 0x200D // zero width non-joiner and joiner
+                || (c >= 0x0600 && c < 0x0900) // Arabic, Syriac, Thaana, NKo and their supplements
+                || (c >= 0x0900 && c < 0x0E00) // Devanagari to Sinhala
+                || (c >= 0x0E00 && c < 0x1000) // Thai, Lao, Tibetan
+                || (c >= 0x1000 && c < 0x10A0) // Myanmar
+                || (c >= 0x1100 && c < 0x1200) // Hangul Jamo, composed into syllables
+                || (c >= 0x1780 && c < 0x18B0) // Khmer, Mongolian
+                || (c >= 0xFB50 && c < 0xFE00) // Arabic presentation forms A
+                || (c >= 0xFE70 && c < 0xFF00); // Arabic presentation forms B
+    }
+
+    private Glyph glyph(Font font, String text) {
+        String key = font.key + "/" + text;
+        Glyph glyph = mGlyphs.get(key);
+        if (glyph != null) return glyph;
+        glyph = draw(font, text);
+        mGlyphs.put(key, glyph);
+        mBytes += glyph.bits.length + ENTRY_BYTES;
+        Iterator<Map.Entry<String, Glyph>> eldest = mGlyphs.entrySet().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, Glyph> entry = eldest.next();
+            if (entry.getValue() == glyph) break;
+            mBytes -= entry.getValue().bits.length + ENTRY_BYTES;
+            eldest.remove();
+        }
+        return glyph;
+    }
+
+    private Glyph draw(Font font, String text) {
+        float advance = font.paint.measureText(text);
+        font.paint.getTextBounds(text, 0, text.length(), mBounds);
+        if (mBounds.isEmpty()) return new Glyph(new byte[0], 0, 0, advance);
+        int left = Math.min(0, mBounds.left);
+        int width = Math.max((int) Math.ceil(advance), mBounds.right) - left;
+        Bitmap cell = Bitmap.createBitmap(width, font.height, Bitmap.Config.ALPHA_8);
+        try {
+            new Canvas(cell).drawText(text, -left, font.ascent, font.paint);
+            int stride = cell.getRowBytes();
+            ByteBuffer alpha = ByteBuffer.allocate(stride * font.height);
+            cell.copyPixelsToBuffer(alpha);
+            byte[] pixels = alpha.array();
+            int bytesPerLine = (width + 7) / 8;
+            byte[] bits = new byte[bytesPerLine * font.height];
+            for (int y = 0; y < font.height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if ((pixels[y * stride + x] & 0xff) >= INK) {
+                        bits[y * bytesPerLine + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                    }
+                }
+            }
+            return new Glyph(bits, bytesPerLine, left, advance);
+        } finally {
+            cell.recycle();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cn.jystudio.bluetooth.escpos.command.sdk;
+
+import java.util.Arrays;
+
+/**
+ * Turns rows of gray levels into black and white, one row at a time and in
+ * place: a dithered row holds 0 for black and 255 for white. Error diffusion
+ * keeps its state in rolling rows allocated once per image, so the per-row
+ * work allocates nothing.
+ */
+public class Dither {
+    public static final int THRESHOLD = 0;        // the mean gray level of the image, decided by RasterEncoder
+    public static final int FLOYD_STEINBERG = 1;  // 7/16 right, 3/16 5/16 1/16 below
+    public static final int ATKINSON = 2;         // 1/8 to six neighbours over two rows, 2/8 dropped
+    public static final int BAYER = 3;            // ordered, the 16x16 matrix the TSC path uses
+
+    private final int mType;
+    // error carried into the next row, index x + 1 for pixel x
+    private int[] mNext;
+    // Atkinson only: error for the row after the next one
+    private int[] mAfterNext;
+
+    /**
+     * @param width pixels per row
+     */
+    public Dither(int type, int width) {
+        mType = type < THRESHOLD || type > BAYER ? THRESHOLD : type;
+        if (mType == FLOYD_STEINBERG || mType == ATKINSON) mNext = new int[width + 2];
+        if (mType == ATKINSON) mAfterNext = new int[width + 2];
+    }
+
+    public int type() {
+        return mType;
+    }
+
+    /**
+     * @return whether the outcome of a row depends on the rows before it
+     */
+    public boolean diffuses() {
+        return mNext != null;
+    }
+
+    /**
+     * Forget the error carried over from the rows so far.
+     */
+    public void reset() {
+        if (mNext != null) Arrays.fill(mNext, 0);
+        if (mAfterNext != null) Arrays.fill(mAfterNext, 0);
+    }
+
+    /**
+     * Dither row y in place. Rows must come in order, top to bottom.
+     */
+    public void apply(int[] row, int width, int y) {
+        switch (mType) {
+            case FLOYD_STEINBERG:
+                floydSteinberg(row, width);
+                break;
+            case ATKINSON:
+                atkinson(row, width);
+                break;
+            case BAYER:
+                int[][] matrix = PrintPicture.Floyd16x16;
+                for (int x = 0; x < width; x++) {
+                    row[x] = row[x] > matrix[x & 15][y & 15] ? 255 : 0;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void floydSteinberg(int[] row, int width) {
+        int[] err = mNext;
+        int right = 0;
+        // next-row error still being summed up for pixels x - 1 and x
+        int belowLeft = 0;
+        int below = 0;
+        for (int x = 0; x < width; x++) {
+            int v = row[x] + right + err[x + 1];
+            int out = v < 128 ? 0 : 255;
+            row[x] = out;
+            int e = v - out;
+            // slot x held this row's error for pixel x - 1, already used
+            err[x] = belowLeft + e * 3 / 16;
+            belowLeft = below + e * 5 / 16;
+            below = e / 16;
+            right = e * 7 / 16;
+        }
+        err[width] = belowLeft;
+        err[width + 1] = 0;
+    }
+
+    private void atkinson(int[] row, int width) {
+        int[] err = mNext;
+        int[] next = mAfterNext;
+        int right = 0;
+        int rightRight = 0;
+        next[0] = 0;
+        next[width + 1] = 0;
+        for (int x = 0; x < width; x++) {
+            int v = row[x] + right + err[x + 1];
+            int out = v < 128 ? 0 : 255;
+            row[x] = out;
+            int e = (v - out) / 8;
+            right = rightRight + e;
+            rightRight = e;
+            next[x] += e;
+            next[x + 1] += e;
+            next[x + 2] += e;
+            // this row's error for pixel x is used, the slot now collects for two rows down
+            err[x + 1] = e;
+        }
+        // the row after next becomes the next row
+        mNext = next;
+        mAfterNext = err;
+        err[0] = 0;
+        err[width + 1] = 0;
+    }
+}
@@ -0,0 +1,69 @@
+package cn.jystudio.bluetooth.escpos.command.sdk;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Packs the modules of a 2D barcode straight into raster rows, 1 for a black
+ * dot, for RasterEncoder.encodeRows(). Every module becomes a square of whole
+ * dots, as large as fits the requested width, and the symbol is centered in it
+ * with its quiet zone around. No Bitmap is involved, so codes are made in a
+ * single pass without gray levels or thresholds.
+ */
+public class MatrixEncoder {
+    private final byte[] mBits;
+    private final int mBytesPerLine;
+    private final int mRows;
+    private final int mModuleSize;
+
+    /**
+     * @param matrix    the symbol, one bit per module; PDF417 rows come several bits tall
+     * @param width     dots the symbol with its quiet zone should span, rounded up to whole bytes
+     * @param quietZone white modules to leave on every side
+     */
+    public MatrixEncoder(BitMatrix matrix, int width, int quietZone) {
+        int columns = matrix.getWidth();
+        int height = matrix.getHeight();
+        int moduleSize = Math.max(1, width / (columns + 2 * quietZone));
+        int dots = Math.max(width, (columns + 2 * quietZone) * moduleSize);
+        mBytesPerLine = (dots + 7) / 8;
+        mModuleSize = moduleSize;
+        mRows = (height + 2 * quietZone) * moduleSize;
+        mBits = new byte[mBytesPerLine * mRows];
+
+        int left = (mBytesPerLine * 8 - columns * moduleSize) / 2;
+        int k = quietZone * moduleSize * mBytesPerLine;
+        for (int y = 0; y < height; y++) {
+            int start = k;
+            for (int x = 0; x < columns; x++) {
+                if (!matrix.get(x, y)) continue;
+                int from = left + x * moduleSize;
+                int to = from + moduleSize;
+                for (int dot = from; dot < to; dot++) {
+                    mBits[start + (dot >> 3)] |= (byte) (0x80 >> (dot & 7));
+                }
+            }
+            k += mBytesPerLine;
+            // the other rows of the module are copies of the first
+            for (int i = 1; i < moduleSize; i++) {
+                System.arraycopy(mBits, start, mBits, k, mBytesPerLine);
+                k += mBytesPerLine;
+            }
+        }
+    }
+
+    public byte[] getBits() {
+        return mBits;
+    }
+
+    public int getBytesPerLine() {
+        return mBytesPerLine;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getModuleSize() {
+        return mModuleSize;
+    }
+}
@@ -395,6 +395,59 @@ public class PrinterCommand {
         return command;
     }
 
+    /**
+     * 二维码打印函数(GS ( k, 由打印机生成二维码, 模型2)
+     *
+     * @param str                   打印二维码数据(UTF-8)
+     * @param nModuleSize           模块大小(1~16点)
+     * @param nErrorCorrectionLevel 纠错级别(0~3: L M Q H)
+     * @return
+     */
+    public static byte[] getQRCodeGSCommand(String str, int nModuleSize, int nErrorCorrectionLevel) {
+
+        if (nModuleSize < 1 | nModuleSize > 16 | nErrorCorrectionLevel < 0 | nErrorCorrectionLevel > 3) {
+            return null;
+        }
+
+        byte[] bCodeData = null;
+        try {
+            bCodeData = str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (bCodeData.length == 0 | bCodeData.length > 7089) {
+            return null;
+        }
+
+        int store = bCodeData.length + 3;
+        byte[] command = new byte[9 + 8 + 8 + 8 + bCodeData.length + 8];
+        int k = 0;
+        //GS ( k pL pH cn fn n1 n2, 选择模型2
+        byte[] model = {29, 40, 107, 4, 0, 49, 65, 50, 0};
+        System.arraycopy(model, 0, command, k, model.length);
+        k += model.length;
+        //GS ( k pL pH cn fn n, 模块大小
+        byte[] size = {29, 40, 107, 3, 0, 49, 67, (byte) nModuleSize};
+        System.arraycopy(size, 0, command, k, size.length);
+        k += size.length;
+        //GS ( k pL pH cn fn n, 纠错级别
+        byte[] level = {29, 40, 107, 3, 0, 49, 69, (byte) (48 + nErrorCorrectionLevel)};
+        System.arraycopy(level, 0, command, k, level.length);
+        k += level.length;
+        //GS ( k pL pH cn fn m d1...dk, 存储数据
+        byte[] header = {29, 40, 107, (byte) (store & 0xff), (byte) ((store & 0xff00) >> 8), 49, 80, 48};
+        System.arraycopy(header, 0, command, k, header.length);
+        k += header.length;
+        System.arraycopy(bCodeData, 0, command, k, bCodeData.length);
+        k += bCodeData.length;
+        //GS ( k pL pH cn fn m, 打印
+        byte[] print = {29, 40, 107, 3, 0, 49, 81, 48};
+        System.arraycopy(print, 0, command, k, print.length);
+
+        return command;
+    }
+
     /**
      * 打印一维条码
      *
@@ -0,0 +1,622 @@
+package cn.jystudio.bluetooth.escpos.command.sdk;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns a bitmap into ESC/POS raster commands in one pass over its rows and
+ * hands them out band by band, top to bottom, so the first band can be on its
+ * way to the printer while the rest is still being encoded.
+ * <p>
+ * By default the black and white conversion is the one PrintPicture.POS_PrintBMP
+ * always did (gray through an RGB_565 bitmap, thresholded at the mean), only
+ * without the intermediate bitmaps and arrays: gray levels are computed per row
+ * into one buffer, once for the mean and once for the bits. The other Dither
+ * engines work on the full 8-bit gray level in a single pass.
+ */
+public class RasterEncoder {
+    // dot rows per band when a bitmap is streamed to the printer
+    public static final int BAND_ROWS = 64;
+
+    // how the raster is framed into commands
+    public static final int LINES = 0;     // GS v 0, one command per dot row
+    public static final int BLOCK = 1;     // GS v 0, one command per band
+    public static final int GRAPHICS = 2;  // GS ( L / GS 8 L, a band is stored then printed
+
+    // GS ( L carries at most 65535 parameter bytes, larger graphics need GS 8 L
+    private static final int GRAPHICS_MAX_PARAMS = 65535;
+    // GS ( L pL pH m fn, the print buffered graphics command
+    private static final byte[] GRAPHICS_PRINT = new byte[]{29, 40, 76, 2, 0, 48, 50};
+    // ESC J n feeds at most 255 units
+    private static final int MAX_FEED = 255;
+
+    // images at least this tall are encoded on all cores
+    private static final int PARALLEL_MIN_ROWS = 512;
+    // rows above a band that error diffusion runs over before the band's own rows
+    public static final int DIFFUSION_WARMUP_ROWS = 16;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService sPool;
+
+    // ColorMatrix.setSaturation(0) weights in 16.16 fixed point, as PrintPicture.toGrayscale applies them
+    private static final int[] LUMA_R = new int[256];
+    private static final int[] LUMA_G = new int[256];
+    private static final int[] LUMA_B = new int[256];
+    // a gray level after the trip through toGrayscale's RGB_565 bitmap: cut to 5 bits, expanded again
+    private static final int[] GRAY_565 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            LUMA_R[i] = Math.round(0.213f * 65536 * i);
+            LUMA_G[i] = Math.round(0.715f * 65536 * i);
+            LUMA_B[i] = Math.round(0.072f * 65536 * i);
+            int b5 = i >> 3;
+            GRAY_565[i] = (b5 << 3) | (b5 >> 2);
+        }
+    }
+
+    /**
+     * Receives the encoded bitmap band by band, top to bottom.
+     */
+    public interface BandSink {
+        /**
+         * @param band    whole commands, the sink may keep the array
+         * @param rowSize size of each command if the band is a run of equally sized ones, else the band length
+         * @return false to stop encoding
+         */
+        boolean onBand(byte[] band, int rowSize);
+    }
+
+    private final int mFraming;
+    private final int mBandRows;
+    private boolean mSkipBlank;
+    private int mDither = Dither.THRESHOLD;
+    // threshold mode level given by the caller, -1 for the mean of the image
+    private int mThreshold = -1;
+
+    /**
+     * @param framing  LINES, BLOCK or GRAPHICS
+     * @param bandRows dot rows per band; with BLOCK and GRAPHICS also the height of
+     *                 the commands, which must stay within what the printer accepts
+     */
+    public RasterEncoder(int framing, int bandRows) {
+        mFraming = framing;
+        mBandRows = Math.max(1, bandRows);
+    }
+
+    /**
+     * Feed over runs of white rows with ESC J instead of sending them, and leave
+     * the white columns at the right end of each command out. Assumes the ESC J
+     * unit is one dot row and that the raster is printed left aligned.
+     */
+    public RasterEncoder setSkipBlank(boolean skipBlank) {
+        mSkipBlank = skipBlank;
+        return this;
+    }
+
+    /**
+     * @param dither one of the Dither engines
+     */
+    public RasterEncoder setDither(int dither) {
+        mDither = dither;
+        return this;
+    }
+
+    public int bandRows() {
+        return mBandRows;
+    }
+
+    /**
+     * Threshold at this gray level instead of the image's own mean, for an image
+     * encoded piece by piece, see {@link #meanGray(Bitmap)}.
+     *
+     * @param threshold 0 to 255, -1 for the mean
+     */
+    public RasterEncoder setThreshold(int threshold) {
+        mThreshold = Math.min(255, threshold);
+        return this;
+    }
+
+    /**
+     * Mean gray level of a bitmap, as the threshold mode takes it.
+     */
+    public static int meanGray(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int[] row = new int[width];
+        long total = 0;
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            grayRow(bitmap, y, row, true);
+            for (int x = 0; x < width; x++) {
+                total += row[x];
+            }
+        }
+        return (int) (total / Math.max(1, (long) width * bitmap.getHeight()));
+    }
+
+    /**
+     * @param nWidth      width in dots the bitmap is scaled to
+     * @param nMode       GS v 0 m, bit 0 doubles the width
+     * @param leftPadding white dots added on the left
+     * @return false if the sink stopped the encoding
+     */
+    public boolean encode(Bitmap mBitmap, int nWidth, int nMode, int leftPadding, BandSink sink) {
+        int width = ((nWidth + 7) / 8) * 8;
+        int height = mBitmap.getHeight() * width / mBitmap.getWidth();
+        height = ((height + 7) / 8) * 8;
+        int left = leftPadding == 0 ? 0 : ((leftPadding + 7) / 8) * 8;
+
+        Bitmap rszBitmap = mBitmap;
+        if (mBitmap.getWidth() != width) {
+            rszBitmap = Bitmap.createScaledBitmap(mBitmap, width, height, true);
+        }
+        try {
+            return encode(new Image(rszBitmap, left, nMode, Math.min(mBandRows, rszBitmap.getHeight()), 0, 0), sink);
+        } finally {
+            if (rszBitmap != mBitmap) rszBitmap.recycle();
+        }
+    }
+
+    /**
+     * Encode one horizontal strip of an image too large to decode whole. The rows
+     * the strip starts with above its own only warm error diffusion up, as the rows
+     * above every band do, and ordered dithering keeps the phase of the whole image,
+     * so strips join the way bands do. Strips should start on a multiple of bandRows().
+     *
+     * @param strip   scaled to the printed width already, a multiple of 8 dots
+     * @param overlap rows at the top of the strip that belong to the strip above
+     * @param top     row of the whole image the strip's own rows start at
+     * @return false if the sink stopped the encoding
+     */
+    public boolean encodeStrip(Bitmap strip, int overlap, int top, int leftPadding, BandSink sink) {
+        int left = leftPadding == 0 ? 0 : ((leftPadding + 7) / 8) * 8;
+        int own = strip.getHeight() - overlap;
+        if (own <= 0) return true;
+        return encode(new Image(strip, left, 0, Math.min(mBandRows, own), overlap, top - overlap), sink);
+    }
+
+    private boolean encode(Image image, BandSink sink) {
+        int rows = image.rows - image.first;
+        boolean parallel = THREADS > 1 && rows >= PARALLEL_MIN_ROWS && image.bands() > 1;
+        if (image.mean && mThreshold >= 0) {
+            image.setThreshold(mThreshold);
+        } else if (image.mean) {
+            int graytotal = parallel ? parallelGraySum(image) : image.graySum(image.first, image.rows);
+            image.setThreshold(graytotal / rows / (image.width + image.left));
+        }
+        return parallel ? encodeParallel(image, sink) : encodeSerial(image, sink);
+    }
+
+    private boolean encodeSerial(Image image, BandSink sink) {
+        BandWorker worker = new BandWorker(image);
+        for (int band = 0; band < image.bands(); band++) {
+            byte[] data = worker.encode(band);
+            if (!sink.onBand(data, image.rowSize(data))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encode bands on the pool, a few ahead of the sink, and hand them out in order.
+     * Every band is encoded on its own the same way as in encodeSerial, so the
+     * output does not depend on how many threads took part.
+     */
+    private boolean encodeParallel(final Image image, BandSink sink) {
+        ExecutorService pool = pool();
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        int next = 0;
+        try {
+            for (int band = 0; band < image.bands(); band++) {
+                while (next < image.bands() && pending.size() < 2 * THREADS) {
+                    final int b = next++;
+                    pending.add(pool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return new BandWorker(image).encode(b);
+                        }
+                    }));
+                }
+                byte[] data = await(pending.poll());
+                if (data == null || !sink.onBand(data, image.rowSize(data))) return false;
+            }
+            return true;
+        } finally {
+            // the bitmap is recycled once encode() returns, nothing may still be reading it
+            for (Future<byte[]> future : pending) {
+                if (!future.cancel(false)) await(future);
+            }
+        }
+    }
+
+    private int parallelGraySum(final Image image) {
+        ExecutorService pool = pool();
+        List<Future<Integer>> sums = new ArrayList<Future<Integer>>();
+        for (int band = 0; band < image.bands(); band++) {
+            final int top = image.first + band * image.bandRows;
+            sums.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return image.graySum(top, Math.min(image.rows, top + image.bandRows));
+                }
+            }));
+        }
+        // int overflow wraps the same way in any order, as in the single pass
+        int total = 0;
+        for (Future<Integer> sum : sums) {
+            Integer value = await(sum);
+            if (value != null) total += value;
+        }
+        return total;
+    }
+
+    /**
+     * @return the result, null if the waiting thread was interrupted
+     */
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RasterEncoder-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPool;
+    }
+
+    /**
+     * Frame rows that are packed already, 1 for a black dot, the way encode() frames
+     * the rows of a bitmap.
+     *
+     * @param bits rows of nBytesPerLine bytes each
+     * @return false if the sink stopped the encoding
+     */
+    public boolean encodeRows(byte[] bits, int nBytesPerLine, int rows, BandSink sink) {
+        int bandRows = Math.max(1, Math.min(mBandRows, rows));
+        // with mSkipBlank a band is framed only once all its rows are known
+        int[] used = mSkipBlank ? new int[bandRows] : null;
+        for (int top = 0; top < rows; top += bandRows) {
+            int count = Math.min(bandRows, rows - top);
+            byte[] data;
+            int rowSize;
+            if (mSkipBlank) {
+                byte[] band = new byte[count * nBytesPerLine];
+                System.arraycopy(bits, top * nBytesPerLine, band, 0, band.length);
+                for (int i = 0; i < count; i++) {
+                    int k = (i + 1) * nBytesPerLine;
+                    while (k > i * nBytesPerLine && band[k - 1] == 0) k--;
+                    used[i] = k - i * nBytesPerLine;
+                }
+                data = frameSkipping(band, used, count, nBytesPerLine, 0);
+                rowSize = data.length;
+            } else {
+                data = new byte[bandSize(nBytesPerLine, count)];
+                int k = bandHeader(data, 0, 0, nBytesPerLine, nBytesPerLine, count);
+                for (int i = 0; i < count; i++) {
+                    if (mFraming == LINES) k = rasterHeader(data, k, 0, nBytesPerLine, 1);
+                    System.arraycopy(bits, (top + i) * nBytesPerLine, data, k, nBytesPerLine);
+                    k += nBytesPerLine;
+                }
+                if (mFraming == GRAPHICS) System.arraycopy(GRAPHICS_PRINT, 0, data, k, GRAPHICS_PRINT.length);
+                rowSize = mFraming == LINES ? 8 + nBytesPerLine : data.length;
+            }
+            if (!sink.onBand(data, rowSize)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A scaled bitmap being encoded and what was worked out about it up front.
+     */
+    private class Image {
+        final Bitmap bitmap;
+        final int width;
+        final int left;
+        final int nMode;
+        final int rows;
+        // rows before this one only warm error diffusion up, they are not printed
+        final int first;
+        // row of the whole image the bitmap's first row is, for the ordered dither phase
+        final int phase;
+        final int bandRows;
+        final int nBytesPerLine;
+        // thresholded at the mean gray level, the way POS_PrintBMP always did
+        final boolean mean;
+        int threshold = 127;
+        byte padding = 0;
+
+        Image(Bitmap bitmap, int left, int nMode, int bandRows, int first, int phase) {
+            this.bitmap = bitmap;
+            this.width = bitmap.getWidth();
+            this.left = left;
+            this.nMode = nMode;
+            this.rows = bitmap.getHeight();
+            this.first = first;
+            this.phase = phase;
+            this.bandRows = Math.max(1, bandRows);
+            this.nBytesPerLine = (width + left) / 8;
+            this.mean = new Dither(mDither, 0).type() == Dither.THRESHOLD;
+        }
+
+        int bands() {
+            return (rows - first + bandRows - 1) / bandRows;
+        }
+
+        /**
+         * Sum of the quantized gray levels of rows from to to, the left padding counted as white.
+         */
+        int graySum(int from, int to) {
+            int[] row = new int[width];
+            int total = 255 * left * (to - from);
+            for (int y = from; y < to; y++) {
+                grayRow(bitmap, y, row, true);
+                for (int x = 0; x < width; x++) {
+                    total += row[x];
+                }
+            }
+            return total;
+        }
+
+        void setThreshold(int threshold) {
+            this.threshold = threshold;
+            padding = (byte) (255 > threshold ? 0 : 0xff);
+        }
+
+        int rowSize(byte[] band) {
+            boolean uniform = mFraming == LINES && !mSkipBlank;
+            return uniform ? 8 + nBytesPerLine : band.length;
+        }
+    }
+
+    /**
+     * Buffers for encoding an image band by band on one thread.
+     */
+    private class BandWorker {
+        private final Image mImage;
+        private final int[] mRow;
+        private final Dither mDitherer;
+        private final byte[] mBits;
+        private final int[] mUsed;
+
+        BandWorker(Image image) {
+            mImage = image;
+            mRow = new int[image.width];
+            mDitherer = new Dither(mDither, image.width);
+            // with mSkipBlank a band is framed only once all its rows are known
+            mBits = mSkipBlank ? new byte[image.bandRows * image.nBytesPerLine] : null;
+            mUsed = mSkipBlank ? new int[image.bandRows] : null;
+        }
+
+        byte[] encode(int band) {
+            Image image = mImage;
+            int top = image.first + band * image.bandRows;
+            int count = Math.min(image.bandRows, image.rows - top);
+            int nBytesPerLine = image.nBytesPerLine;
+            // error diffusion starts afresh in every band, warmed up on the rows above it
+            mDitherer.reset();
+            if (mDitherer.diffuses()) {
+                for (int y = Math.max(0, top - DIFFUSION_WARMUP_ROWS); y < top; y++) {
+                    nextRow(y);
+                }
+            }
+            if (mBits != null) {
+                for (int i = 0; i < count; i++) {
+                    nextRow(top + i);
+                    mUsed[i] = packRow(mRow, image.width, image.threshold, image.padding, image.left,
+                            mBits, i * nBytesPerLine);
+                }
+                return frameSkipping(mBits, mUsed, count, nBytesPerLine, image.nMode);
+            }
+            byte[] data = new byte[bandSize(nBytesPerLine, count)];
+            int k = bandHeader(data, 0, image.nMode, nBytesPerLine, nBytesPerLine, count);
+            for (int i = 0; i < count; i++) {
+                if (mFraming == LINES) k = rasterHeader(data, k, image.nMode, nBytesPerLine, 1);
+                nextRow(top + i);
+                packRow(mRow, image.width, image.threshold, image.padding, image.left, data, k);
+                k += nBytesPerLine;
+            }
+            if (mFraming == GRAPHICS) System.arraycopy(GRAPHICS_PRINT, 0, data, k, GRAPHICS_PRINT.length);
+            return data;
+        }
+
+        private void nextRow(int y) {
+            grayRow(mImage.bitmap, y, mRow, mImage.mean);
+            mDitherer.apply(mRow, mImage.width, y + mImage.phase);
+        }
+    }
+
+    /**
+     * Read one row and turn it into the gray levels PrintPicture.toGrayscale would
+     * produce: luminance drawn over the black of a fresh RGB_565 bitmap, as its blue
+     * channel. Without quantize the gray level keeps all 8 bits.
+     */
+    private static void grayRow(Bitmap bitmap, int y, int[] row, boolean quantize) {
+        int width = bitmap.getWidth();
+        bitmap.getPixels(row, 0, width, 0, y, width, 1);
+        for (int x = 0; x < width; x++) {
+            int c = row[x];
+            int gray = (LUMA_R[(c >> 16) & 255] + LUMA_G[(c >> 8) & 255] + LUMA_B[c & 255] + 32768) >> 16;
+            if (gray > 255) gray = 255;
+            int alpha = c >>> 24;
+            if (alpha != 255) gray = (gray * alpha + 127) / 255;
+            row[x] = quantize ? GRAY_565[gray] : gray;
+        }
+    }
+
+    /**
+     * Threshold a gray row into bits, most significant first, after the padding bytes.
+     *
+     * @return bytes up to and including the last one with a black dot
+     */
+    private static int packRow(int[] row, int width, int threshold, byte padding, int left, byte[] out, int k) {
+        int start = k;
+        int used = 0;
+        for (int i = 0; i < left; i += 8) {
+            out[k++] = padding;
+            if (padding != 0) used = k - start;
+        }
+        for (int x = 0; x < width; x += 8) {
+            int bits = 0;
+            for (int b = 0; b < 8; b++) {
+                if (row[x + b] <= threshold) bits |= 0x80 >> b;
+            }
+            out[k++] = (byte) bits;
+            if (bits != 0) used = k - start;
+        }
+        return used;
+    }
+
+    /**
+     * Frame a band with white row runs turned into feeds and every command cut
+     * after its last black column. In the block framings a short white run inside
+     * the band stays in the command when a feed would cost more than it saves.
+     */
+    private byte[] frameSkipping(byte[] bits, int[] used, int count, int nBytesPerLine, int nMode) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count * (8 + nBytesPerLine));
+        int overhead = 3 + (mFraming == GRAPHICS ? 17 + GRAPHICS_PRINT.length : 8);
+        int minRun = mFraming == LINES ? 1 : 1 + overhead / nBytesPerLine;
+        byte[] header = new byte[17];
+        int i = 0;
+        while (i < count) {
+            int run = blankRun(used, i, count);
+            if (run > 0 && (run >= minRun || i == 0 || i + run == count)) {
+                feed(out, run);
+                i += run;
+                continue;
+            }
+            int start = i;
+            int segmentWidth = 0;
+            while (i < count) {
+                run = blankRun(used, i, count);
+                if (run > 0 && (run >= minRun || i + run == count)) break;
+                int end = i + Math.max(run, 1);
+                for (; i < end; i++) segmentWidth = Math.max(segmentWidth, used[i]);
+            }
+            if (mFraming == LINES) {
+                for (int j = start; j < i; j++) {
+                    out.write(header, 0, rasterHeader(header, 0, nMode, used[j], 1));
+                    out.write(bits, j * nBytesPerLine, used[j]);
+                }
+                continue;
+            }
+            out.write(header, 0, bandHeader(header, 0, nMode, segmentWidth, nBytesPerLine, i - start));
+            for (int j = start; j < i; j++) {
+                out.write(bits, j * nBytesPerLine, segmentWidth);
+            }
+            if (mFraming == GRAPHICS) out.write(GRAPHICS_PRINT, 0, GRAPHICS_PRINT.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static int blankRun(int[] used, int from, int count) {
+        int i = from;
+        while (i < count && used[i] == 0) i++;
+        return i - from;
+    }
+
+    //ESC J n 打印并进纸 n 点行
+    private static void feed(ByteArrayOutputStream out, int rows) {
+        while (rows > 0) {
+            int n = Math.min(MAX_FEED, rows);
+            out.write(27);
+            out.write(74);
+            out.write(n);
+            rows -= n;
+        }
+    }
+
+    private int bandSize(int nBytesPerLine, int rows) {
+        int size = nBytesPerLine * rows;
+        switch (mFraming) {
+            case BLOCK:
+                return 8 + size;
+            case GRAPHICS:
+                return (10L + size > GRAPHICS_MAX_PARAMS ? 17 : 15) + size + GRAPHICS_PRINT.length;
+            default:
+                return (8 + nBytesPerLine) * rows;
+        }
+    }
+
+    /**
+     * Write the command that opens a band of rows, if the framing has one.
+     *
+     * @param bytesPerRow bytes sent per row, at most nBytesPerLine
+     * @return where the row data starts
+     */
+    private int bandHeader(byte[] data, int k, int nMode, int bytesPerRow, int nBytesPerLine, int rows) {
+        if (mFraming == BLOCK) return rasterHeader(data, k, nMode, bytesPerRow, rows);
+        if (mFraming != GRAPHICS) return k;
+        long params = 10 + (long) bytesPerRow * rows;
+        data[k++] = 29;//GS
+        if (params > GRAPHICS_MAX_PARAMS) {
+            //GS 8 L p1 p2 p3 p4 m fn a bx by c xL xH yL yH d1...dk
+            data[k++] = 56;//8
+            data[k++] = 76;//L
+            data[k++] = (byte) params;
+            data[k++] = (byte) (params >> 8);
+            data[k++] = (byte) (params >> 16);
+            data[k++] = (byte) (params >> 24);
+        } else {
+            //GS ( L pL pH m fn a bx by c xL xH yL yH d1...dk
+            data[k++] = 40;//(
+            data[k++] = 76;//L
+            data[k++] = (byte) params;
+            data[k++] = (byte) (params >> 8);
+        }
+        data[k++] = 48;//m
+        data[k++] = 112;//fn 112, store raster graphics
+        data[k++] = 48;//a, monochrome
+        data[k++] = (byte) ((nMode & 1) + 1);//bx
+        data[k++] = 1;//by
+        data[k++] = 49;//c, first color
+        int dots = bytesPerRow * 8;
+        data[k++] = (byte) (dots % 256);//xL
+        data[k++] = (byte) (dots / 256);//xH
+        data[k++] = (byte) (rows % 256);//yL
+        data[k++] = (byte) (rows / 256);//yH
+        return k;
+    }
+
+    //GS v 0 m xL xH yL yH d1....dk 打印光栅位图
+    private static int rasterHeader(byte[] data, int k, int nMode, int bytesPerRow, int rows) {
+        data[k++] = 29;//GS
+        data[k++] = 118;//v
+        data[k++] = 48;//0
+        data[k++] = (byte) (nMode & 1);
+        data[k++] = (byte) (bytesPerRow % 256);//xL
+        data[k++] = (byte) (bytesPerRow / 256);//xH
+        data[k++] = (byte) (rows % 256);//yL
+        data[k++] = (byte) (rows / 256);//yH
+        return k;
+    }
+}
@@ -0,0 +1,234 @@
+package cn.jystudio.bluetooth.transport;
+
+import cn.jystudio.bluetooth.ByteRing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-memory printer for benchmarks and tests. Written bytes are counted and
+ * drained at a configurable rate through a receive buffer of configurable size,
+ * so a slow printer with a small buffer can be simulated without hardware.
+ * DLE EOT n requests are answered with "online, no error" (0x12).
+ */
+public class LoopbackTransport implements PrinterTransport {
+    public static final String ADDRESS = "loopback";
+    private static final int DEFAULT_BUFFER = 64 * 1024;
+    private static final int REPLY_CAPACITY = 1024;
+    private static final int STATUS_ONLINE = 0x12;
+
+    private final int mBufferSize;
+    private final int mBytesPerSecond;
+    private final int mMtu;
+    private final Object mLock = new Object();
+    private final ByteRing mReplies = new ByteRing(REPLY_CAPACITY);
+    private volatile boolean mOpen;
+
+    // receive buffer simulation, guarded by mLock
+    private long mBuffered;
+    private long mLastDrainNanos;
+
+    // statistics, guarded by mLock
+    private long mBytesWritten;
+    private long mWriteCalls;
+    private long mFlushCalls;
+    private int mEotMatch; // progress through DLE EOT across write calls
+
+    /**
+     * @param bufferSize     simulated printer receive buffer in bytes, 0 for the default 64 KB
+     * @param bytesPerSecond simulated drain rate, 0 for unlimited
+     * @param mtu            frame size reported to the writer, 0 for 990 like RFCOMM
+     */
+    public LoopbackTransport(int bufferSize, int bytesPerSecond, int mtu) {
+        mBufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER;
+        mBytesPerSecond = bytesPerSecond;
+        mMtu = mtu > 0 ? mtu : 990;
+    }
+
+    public LoopbackTransport() {
+        this(0, 0, 0);
+    }
+
+    @Override
+    public void open() {
+        synchronized (mLock) {
+            mOpen = true;
+            mLastDrainNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Queue bytes as if the printer had sent them.
+     */
+    public void reply(byte[] data) {
+        synchronized (mLock) {
+            mReplies.write(data, 0, data.length);
+            mLock.notifyAll();
+        }
+    }
+
+    public long getBytesWritten() {
+        synchronized (mLock) {
+            return mBytesWritten;
+        }
+    }
+
+    public long getWriteCalls() {
+        synchronized (mLock) {
+            return mWriteCalls;
+        }
+    }
+
+    public long getFlushCalls() {
+        synchronized (mLock) {
+            return mFlushCalls;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mBytesWritten = 0;
+            mWriteCalls = 0;
+            mFlushCalls = 0;
+        }
+    }
+
+    private void drain() {
+        if (mBytesPerSecond <= 0) {
+            mBuffered = 0;
+            return;
+        }
+        long now = System.nanoTime();
+        long drained = (now - mLastDrainNanos) * mBytesPerSecond / 1000000000L;
+        if (drained > 0) {
+            mBuffered = Math.max(0, mBuffered - drained);
+            mLastDrainNanos = now;
+        }
+    }
+
+    private void accept(byte[] b, int off, int len) throws IOException {
+        synchronized (mLock) {
+            if (!mOpen) throw new IOException("Loopback closed");
+            mWriteCalls++;
+            for (int i = off; i < off + len; i++) {
+                scanForStatusRequest(b[i]);
+            }
+            int remaining = len;
+            while (remaining > 0) {
+                drain();
+                long room = mBufferSize - mBuffered;
+                if (room <= 0) {
+                    // block like a socket whose peer stopped reading
+                    try {
+                        mLock.wait(Math.max(1, 1000L * (mBufferSize / 8 + 1) / Math.max(1, mBytesPerSecond)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    if (!mOpen) throw new IOException("Loopback closed");
+                    continue;
+                }
+                int n = (int) Math.min(room, remaining);
+                mBuffered += n;
+                mBytesWritten += n;
+                remaining -= n;
+            }
+        }
+    }
+
+    private void scanForStatusRequest(byte b) {
+        if (mEotMatch == 2) {
+            mEotMatch = 0;
+            mReplies.write(new byte[]{(byte) STATUS_ONLINE}, 0, 1);
+            mLock.notifyAll();
+        } else if (mEotMatch == 1) {
+            mEotMatch = b == 0x04 ? 2 : 0;
+        }
+        if (mEotMatch == 0 && b == 0x10) mEotMatch = 1;
+    }
+
+    private final OutputStream mOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            accept(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            accept(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            synchronized (mLock) {
+                mFlushCalls++;
+            }
+        }
+    };
+
+    private final InputStream mIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (mLock) {
+                while (mReplies.size() == 0) {
+                    if (!mOpen) return -1;
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                int n = Math.min(len, mReplies.size());
+                mReplies.read(b, off, n);
+                return n;
+            }
+        }
+    };
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public String getAddress() {
+        return ADDRESS;
+    }
+
+    @Override
+    public String getName() {
+        return "Loopback";
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mOpen = false;
+            mLock.notifyAll();
+        }
+    }
+}
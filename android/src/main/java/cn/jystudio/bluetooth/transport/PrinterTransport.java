@@ -0,0 +1,37 @@
+package cn.jystudio.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte pipe to one printer. BluetoothService drives every transport the same
+ * way: open() on its connection thread, then one thread reading the input
+ * stream and one writer thread writing the output stream.
+ */
+public interface PrinterTransport {
+    /**
+     * Establish the connection. Blocks until connected or failed.
+     */
+    void open() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return the preferred size of a single write, used to size coalesced frames
+     */
+    int getMtu();
+
+    /**
+     * @return a stable key for the printer, e.g. its Bluetooth address or host:port
+     */
+    String getAddress();
+
+    String getName();
+
+    boolean isOpen();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,173 @@
+package cn.jystudio.bluetooth.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bluetooth SPP printer over an RFCOMM socket.
+ */
+public class RfcommTransport implements PrinterTransport {
+    private static final String TAG = "RfcommTransport";
+    //UUID must be this
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // RFCOMM default MTU on Android when the socket cannot tell us
+    private static final int DEFAULT_MTU = 990;
+
+    // ways to get a connected socket, in the order they are tried
+    private static final int STRATEGY_CHANNEL_1 = 1; // 1..3: hidden createRfcommSocket(channel)
+    private static final int STRATEGY_CHANNEL_3 = 3;
+    private static final int STRATEGY_SPP = 4;
+    private static final int STRATEGY_SPP_INSECURE = 5;
+    private static final int[] STRATEGIES = {1, 2, 3, STRATEGY_SPP, STRATEGY_SPP_INSECURE};
+
+    // failures of the cached strategy in a row before the other strategies are tried as well
+    private static final int SEARCH_EVERY = 4;
+
+    // the strategy that last connected each device, tried first on reconnect
+    private static final Map<String, Integer> sLastStrategy = new ConcurrentHashMap<String, Integer>();
+    // failures of the cached strategy in a row, by device
+    private static final Map<String, Integer> sCachedFailures = new ConcurrentHashMap<String, Integer>();
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothDevice mDevice;
+    private volatile BluetoothSocket mSocket;
+
+    public RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device) {
+        mAdapter = adapter;
+        mDevice = device;
+    }
+
+    /**
+     * Forget which socket strategy worked for a device, e.g. after it was re-paired.
+     */
+    public static void forgetStrategy(String address) {
+        sLastStrategy.remove(address);
+        sCachedFailures.remove(address);
+    }
+
+    @Override
+    public void open() throws IOException {
+        // Always cancel discovery because it will slow down a connection
+        if (mAdapter != null) mAdapter.cancelDiscovery();
+
+        String address = mDevice.getAddress();
+        Integer cached = sLastStrategy.get(address);
+        if (cached != null) {
+            try {
+                connect(cached);
+                sCachedFailures.remove(address);
+                return;
+            } catch (IOException e) {
+                // a printer that is off or asleep fails every strategy, so the cached one
+                // is kept and the others are only tried on every SEARCH_EVERY-th failure
+                Integer failures = sCachedFailures.get(address);
+                int count = failures == null ? 1 : failures + 1;
+                sCachedFailures.put(address, count);
+                Log.w(TAG, "cached socket strategy " + cached + " failed for " + address + " (" + count + ")");
+                if (count % SEARCH_EVERY != 0) throw e;
+            }
+        }
+        IOException failure = null;
+        for (int strategy : STRATEGIES) {
+            if (cached != null && strategy == cached) continue;
+            try {
+                connect(strategy);
+                // only a strategy that connected replaces the cached one
+                sLastStrategy.put(address, strategy);
+                sCachedFailures.remove(address);
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new IOException("create() failed: Socket NULL.");
+    }
+
+    private void connect(int strategy) throws IOException {
+        BluetoothSocket tmp = createSocket(strategy);
+        if (tmp == null) {
+            throw new IOException("create() failed: Socket NULL.");
+        }
+        mSocket = tmp;
+
+        try {
+            // This is a blocking call and will only return on a
+            // successful connection or an exception
+            tmp.connect();
+        } catch (IOException e) {
+            try {
+                tmp.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "unable to close() socket during connection failure", e2);
+            }
+            throw e;
+        }
+    }
+
+    private BluetoothSocket createSocket(int strategy) throws IOException {
+        if (strategy >= STRATEGY_CHANNEL_1 && strategy <= STRATEGY_CHANNEL_3) {
+            // the socket inner method, not part of the public API
+            try {
+                return (BluetoothSocket) mDevice.getClass().getMethod("createRfcommSocket", int.class).invoke(mDevice, strategy);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        if (strategy == STRATEGY_SPP_INSECURE) {
+            return mDevice.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
+        }
+        // try with given uuid
+        return mDevice.createRfcommSocketToServiceRecord(SPP_UUID);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public int getMtu() {
+        BluetoothSocket socket = mSocket;
+        if (socket != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && socket.getMaxTransmitPacketSize() > 0) {
+            return socket.getMaxTransmitPacketSize();
+        }
+        return DEFAULT_MTU;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public boolean isOpen() {
+        BluetoothSocket socket = mSocket;
+        return socket != null && socket.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket = mSocket;
+        if (socket != null) socket.close();
+    }
+}
@@ -0,0 +1,77 @@
+package cn.jystudio.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Network printer on a raw TCP port, 9100 for nearly all ESC/POS and TSC models.
+ */
+public class TcpTransport implements PrinterTransport {
+    public static final int DEFAULT_PORT = 9100;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // one Ethernet segment
+    private static final int MTU = 1460;
+
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket;
+
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port > 0 ? port : DEFAULT_PORT;
+    }
+
+    @Override
+    public void open() throws IOException {
+        Socket socket = new Socket();
+        mSocket = socket;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public int getMtu() {
+        return MTU;
+    }
+
+    @Override
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    @Override
+    public String getName() {
+        return mHost;
+    }
+
+    @Override
+    public boolean isOpen() {
+        Socket socket = mSocket;
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket socket = mSocket;
+        if (socket != null) socket.close();
+    }
+}
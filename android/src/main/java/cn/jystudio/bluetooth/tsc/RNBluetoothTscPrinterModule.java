@@ -5,8 +5,11 @@ import android.graphics.BitmapFactory;
 import android.util.Base64;
 import cn.jystudio.bluetooth.BluetoothService;
 import cn.jystudio.bluetooth.BluetoothServiceStateObserver;
+import cn.jystudio.bluetooth.PendingResponse;
+import cn.jystudio.bluetooth.PrinterResponse;
 import com.facebook.react.bridge.*;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.Vector;
 
@@ -16,7 +19,10 @@ import java.util.Vector;
 public class RNBluetoothTscPrinterModule extends ReactContextBaseJavaModule
 implements BluetoothServiceStateObserver{
     private static final String TAG="BluetoothTscPrinter";
+    private static final long QUERY_TIMEOUT_MS = 2000;
     private BluetoothService mService;
+    // printer the following calls go to, null for the last connected one
+    private volatile String mTarget;
 
     public RNBluetoothTscPrinterModule(ReactApplicationContext reactContext,BluetoothService bluetoothService) {
         super(reactContext);
@@ -29,8 +35,15 @@ implements BluetoothServiceStateObserver{
         return "BluetoothTscPrinter";
     }
 
+    /* Send the following calls to this connected printer, null for the last connected one */
+    @ReactMethod
+    public void setTarget(@Nullable String address) {
+        mTarget = address;
+    }
+
     @ReactMethod
     public void printLabel(final ReadableMap options, final Promise promise) {
+        String address = options.hasKey("address") ? options.getString("address") : mTarget;
         int width = options.getInt("width");
         int height = options.getInt("height");
         int gap = options.hasKey("gap") ? options.getInt("gap") : 0;
@@ -174,16 +187,81 @@ implements BluetoothServiceStateObserver{
         if (sound) {
             tsc.addSound(2, 100); //打印标签后 蜂鸣器响
         }
+        byte[] tosend = toBytes(tsc);
+        if(sendDataByte(address, tosend)){
+            mService.flush(address);
+            promise.resolve(null);
+        }else{
+            promise.reject("COMMAND_SEND_ERROR");
+        }
+    }
+
+    /**
+     * ESC ! ? status, resolves with the status byte (0 is ready).
+     */
+    @ReactMethod
+    public void queryStatus(final Promise promise) {
+        TscCommand tsc = new TscCommand();
+        tsc.queryPrinterStatus();
+        awaitResponse(tsc, PrinterResponse.TYPE_REALTIME_STATUS, promise);
+    }
+
+    /**
+     * ~! queries, resolves with the reply text.
+     * info: "type", "life", "memory", "file" or "codepage".
+     */
+    @ReactMethod
+    public void queryPrinterInfo(String info, final Promise promise) {
+        TscCommand tsc = new TscCommand();
+        if ("type".equals(info)) {
+            tsc.queryPrinterType();
+        } else if ("life".equals(info)) {
+            tsc.queryPrinterLife();
+        } else if ("memory".equals(info)) {
+            tsc.queryPrinterMemory();
+        } else if ("file".equals(info)) {
+            tsc.queryPrinterFile();
+        } else if ("codepage".equals(info)) {
+            tsc.queryPrinterCodePage();
+        } else {
+            promise.reject("INVALID_QUERY");
+            return;
+        }
+        awaitResponse(tsc, PrinterResponse.TYPE_TEXT, promise);
+    }
+
+    private void awaitResponse(TscCommand tsc, final int type, final Promise promise) {
+        final PendingResponse pending = mService.query(mTarget, toBytes(tsc), type);
+        if (pending == null) {
+            promise.reject("COMMAND_SEND_ERROR");
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PrinterResponse response = pending.await(QUERY_TIMEOUT_MS);
+                    if (response == null) {
+                        promise.reject("QUERY_TIMEOUT");
+                    } else if (type == PrinterResponse.TYPE_TEXT) {
+                        promise.resolve(response.getText());
+                    } else {
+                        promise.resolve(response.getStatus());
+                    }
+                } catch (InterruptedException e) {
+                    promise.reject("QUERY_TIMEOUT", e);
+                }
+            }
+        }).start();
+    }
+
+    private static byte[] toBytes(TscCommand tsc) {
         Vector<Byte> bytes = tsc.getCommand();
         byte[] tosend = new byte[bytes.size()];
         for(int i=0;i<bytes.size();i++){
             tosend[i]= bytes.get(i);
         }
-        if(sendDataByte(tosend)){
-            promise.resolve(null);
-        }else{
-            promise.reject("COMMAND_SEND_ERROR");
-        }
+        return tosend;
     }
 
     private TscCommand.BARCODETYPE findBarcodeType(String type) {
@@ -290,12 +368,9 @@ implements BluetoothServiceStateObserver{
         return bm;
     }
 
-    private boolean sendDataByte(byte[] data) {
-        if (mService.getState() != BluetoothService.STATE_CONNECTED) {
-            return false;
-        }
-        mService.write(data);
-        return true;
+    private boolean sendDataByte(String address, byte[] data) {
+        // fails by itself when not connected, but queues while the printer reconnects
+        return !mService.write(address, data).isFailed();
     }
 
     @Override
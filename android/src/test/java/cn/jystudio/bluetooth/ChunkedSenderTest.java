@@ -0,0 +1,146 @@
+package cn.jystudio.bluetooth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedSenderTest {
+    private static final byte[] STATUS_REQUEST = new byte[]{0x10, 0x04, 0x01};
+
+    /**
+     * Answers status requests from a script, -1 standing for no reply.
+     */
+    static class ScriptedProbe implements ChunkedSender.StatusProbe {
+        private final int[] mReplies;
+        int requests;
+
+        ScriptedProbe(int... replies) {
+            mReplies = replies;
+        }
+
+        @Override
+        public void arm() {
+        }
+
+        @Override
+        public int await(long timeoutMs) {
+            int reply = mReplies[Math.min(requests, mReplies.length - 1)];
+            requests++;
+            return reply;
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (i + 1);
+        return data;
+    }
+
+    /**
+     * The stream with every status request cut out.
+     */
+    private static byte[] withoutStatusRequests(byte[] data) {
+        List<Byte> out = new ArrayList<Byte>();
+        for (int i = 0; i < data.length; i++) {
+            if (i + 3 <= data.length && Arrays.equals(Arrays.copyOfRange(data, i, i + 3), STATUS_REQUEST)) {
+                i += 2;
+                continue;
+            }
+            out.add(data[i]);
+        }
+        byte[] result = new byte[out.size()];
+        for (int i = 0; i < result.length; i++) result[i] = out.get(i);
+        return result;
+    }
+
+    @Test
+    public void optionsChunkOnlyAboveTheSize() {
+        ChunkedSender.Options options = new ChunkedSender.Options(100, 0, false);
+        assertFalse(options.shouldChunk(100));
+        assertTrue(options.shouldChunk(101));
+        assertFalse(ChunkedSender.Options.NONE.shouldChunk(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void sendsEveryChunkAsItsOwnWrite() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), null);
+        byte[] data = bytes(25);
+        sender.send(data, new ChunkedSender.Options(10, 0, false));
+        assertEquals(Arrays.asList(10, 10, 5), out.writes);
+        assertEquals(3, out.flushes);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void pollsStatusBetweenChunks() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        ScriptedProbe probe = new ScriptedProbe(0x12);
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), probe);
+        byte[] data = bytes(30);
+        sender.send(data, new ChunkedSender.Options(10, 0, true));
+        // between the chunks only, not after the last one
+        assertEquals(2, probe.requests);
+        assertArrayEquals(data, withoutStatusRequests(out.toByteArray()));
+    }
+
+    @Test
+    public void waitsWhileThePrinterIsOffline() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        ScriptedProbe probe = new ScriptedProbe(0x1a, 0x1a, 0x12);
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), probe);
+        byte[] data = bytes(20);
+        sender.send(data, new ChunkedSender.Options(10, 0, true));
+        assertEquals(3, probe.requests);
+        assertArrayEquals(data, withoutStatusRequests(out.toByteArray()));
+    }
+
+    @Test
+    public void stopsPollingAPrinterThatDoesNotAnswer() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        ScriptedProbe probe = new ScriptedProbe(-1);
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), probe);
+        byte[] data = bytes(40);
+        sender.send(data, new ChunkedSender.Options(10, 0, true));
+        assertEquals(1, probe.requests);
+        assertArrayEquals(data, withoutStatusRequests(out.toByteArray()));
+    }
+
+    @Test
+    public void confirmsReceiptWithOneStatusRequest() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        // an offline printer still answers, so it did receive the bytes
+        ScriptedProbe probe = new ScriptedProbe(0x1a);
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), probe);
+        assertTrue(sender.confirmReceived());
+        assertEquals(1, probe.requests);
+        assertArrayEquals(STATUS_REQUEST, out.toByteArray());
+    }
+
+    @Test
+    public void givesUpConfirmingWithAPrinterThatDoesNotAnswer() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        ScriptedProbe probe = new ScriptedProbe(-1);
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), probe);
+        assertFalse(sender.confirmReceived());
+        assertFalse(sender.confirmReceived());
+        assertEquals(1, probe.requests);
+    }
+
+    @Test
+    public void optionsAreTakenPerSend() throws IOException {
+        FrameWriterTest.RecordingStream out = new FrameWriterTest.RecordingStream();
+        ChunkedSender sender = new ChunkedSender(new FrameWriter(out, 64), null);
+        sender.send(bytes(20), new ChunkedSender.Options(10, 0, false));
+        sender.send(bytes(20), new ChunkedSender.Options(5, 0, false));
+        assertEquals(Arrays.asList(10, 10, 5, 5, 5, 5), out.writes);
+    }
+}
@@ -0,0 +1,81 @@
+package cn.jystudio.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameWriterTest {
+    /**
+     * Records every write separately, so frame boundaries can be checked.
+     */
+    static class RecordingStream extends ByteArrayOutputStream {
+        final List<Integer> writes = new ArrayList<Integer>();
+        int flushes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (seed + i);
+        return data;
+    }
+
+    @Test
+    public void coalescesSmallWritesIntoOneFrame() throws IOException {
+        RecordingStream out = new RecordingStream();
+        FrameWriter writer = new FrameWriter(out, 16);
+        writer.append(bytes(3, 0));
+        writer.append(bytes(4, 3));
+        assertEquals(0, out.writes.size());
+        writer.flush();
+        assertEquals(Arrays.asList(7), out.writes);
+        assertEquals(1, out.flushes);
+        assertArrayEquals(bytes(7, 0), out.toByteArray());
+        assertTrue(writer.isEmpty());
+    }
+
+    @Test
+    public void writesEachFrameAsItFills() throws IOException {
+        RecordingStream out = new RecordingStream();
+        FrameWriter writer = new FrameWriter(out, 8);
+        writer.append(bytes(5, 0));
+        writer.append(bytes(5, 5));
+        assertEquals(Arrays.asList(8), out.writes);
+        writer.flush();
+        assertEquals(Arrays.asList(8, 2), out.writes);
+        assertArrayEquals(bytes(10, 0), out.toByteArray());
+    }
+
+    @Test
+    public void passesWholeFramesThroughWhenEmpty() throws IOException {
+        RecordingStream out = new RecordingStream();
+        FrameWriter writer = new FrameWriter(out, 8);
+        writer.append(bytes(20, 0));
+        writer.flush();
+        assertEquals(Arrays.asList(8, 8, 4), out.writes);
+        assertArrayEquals(bytes(20, 0), out.toByteArray());
+    }
+
+    @Test
+    public void fallsBackToDefaultMtu() {
+        assertEquals(FrameWriter.DEFAULT_MTU, new FrameWriter(new ByteArrayOutputStream(), 0).mtu());
+    }
+}
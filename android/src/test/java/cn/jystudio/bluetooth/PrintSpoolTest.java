@@ -0,0 +1,155 @@
+package cn.jystudio.bluetooth;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PrintSpoolTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+
+    private static List<PrintSpool.Job> resumeAll(PrintSpool spool) {
+        List<PrintSpool.Job> jobs = new ArrayList<PrintSpool.Job>();
+        PrintSpool.Job job;
+        while ((job = spool.nextUnfinished()) != null) {
+            jobs.add(job);
+            spool.resumed(job);
+        }
+        return jobs;
+    }
+
+    @Test
+    public void keepsHandingOutAJobUntilResumed() throws IOException {
+        File dir = mFolder.getRoot();
+        PrintSpool spool = new PrintSpool(dir, ADDRESS);
+        spool.append(bytes("receipt"));
+        spool.commit();
+        spool.close();
+
+        spool = new PrintSpool(dir, ADDRESS);
+        PrintSpool.Job job = spool.nextUnfinished();
+        assertSame(job, spool.nextUnfinished());
+        spool.resumed(job);
+        assertNull(spool.nextUnfinished());
+        spool.close();
+    }
+
+    @Test
+    public void handsOutCommittedJobsAfterAReopen() throws IOException {
+        File dir = mFolder.getRoot();
+        PrintSpool spool = new PrintSpool(dir, ADDRESS);
+        spool.append(bytes("first "));
+        spool.append(bytes("receipt"));
+        spool.commit();
+        spool.append(bytes("second"));
+        spool.commit();
+        spool.close();
+
+        spool = new PrintSpool(dir, ADDRESS);
+        List<PrintSpool.Job> jobs = resumeAll(spool);
+        assertEquals(2, jobs.size());
+        assertArrayEquals(bytes("first receipt"), jobs.get(0).data);
+        assertArrayEquals(bytes("second"), jobs.get(1).data);
+        assertTrue(resumeAll(spool).isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void dropsAnUncommittedJob() throws IOException {
+        File dir = mFolder.getRoot();
+        PrintSpool spool = new PrintSpool(dir, ADDRESS);
+        spool.append(bytes("whole"));
+        spool.commit();
+        spool.append(bytes("torn"));
+        spool.close();
+
+        spool = new PrintSpool(dir, ADDRESS);
+        List<PrintSpool.Job> jobs = resumeAll(spool);
+        assertEquals(1, jobs.size());
+        assertArrayEquals(bytes("whole"), jobs.get(0).data);
+        spool.close();
+    }
+
+    @Test
+    public void cutsOffATornRecord() throws IOException {
+        File dir = mFolder.getRoot();
+        PrintSpool spool = new PrintSpool(dir, ADDRESS);
+        spool.append(bytes("whole"));
+        spool.commit();
+        spool.append(bytes("half written"));
+        spool.close();
+        File journal = new File(dir, ADDRESS.replace(':', '_') + ".spool");
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        file.setLength(file.length() - 4);
+        file.close();
+
+        spool = new PrintSpool(dir, ADDRESS);
+        assertEquals(1, resumeAll(spool).size());
+        // the next job lands right after the last commit
+        spool.append(bytes("next"));
+        spool.commit();
+        spool.close();
+
+        spool = new PrintSpool(dir, ADDRESS);
+        List<PrintSpool.Job> jobs = resumeAll(spool);
+        assertEquals(2, jobs.size());
+        assertArrayEquals(bytes("next"), jobs.get(1).data);
+        spool.close();
+    }
+
+    @Test
+    public void neverHandsOutAnAcknowledgedJob() throws IOException {
+        File dir = mFolder.getRoot();
+        PrintSpool spool = new PrintSpool(dir, ADDRESS);
+        spool.append(bytes("printed"));
+        long printed = spool.commit();
+        spool.append(bytes("pending"));
+        spool.commit();
+        spool.ack(printed);
+        spool.close();
+
+        spool = new PrintSpool(dir, ADDRESS);
+        List<PrintSpool.Job> jobs = resumeAll(spool);
+        assertEquals(1, jobs.size());
+        assertArrayEquals(bytes("pending"), jobs.get(0).data);
+        spool.close();
+    }
+
+    @Test
+    public void truncatesOnceEverythingWasAcknowledged() throws IOException {
+        File dir = mFolder.getRoot();
+        PrintSpool spool = new PrintSpool(dir, ADDRESS);
+        spool.append(bytes("one"));
+        long end = spool.commit();
+        spool.ack(end);
+        // offsets keep growing across the truncation
+        spool.append(bytes("two"));
+        long next = spool.commit();
+        assertTrue(next > end);
+        spool.ack(next);
+        spool.close();
+        assertEquals(0, new File(dir, ADDRESS.replace(':', '_') + ".spool").length());
+
+        spool = new PrintSpool(dir, ADDRESS);
+        assertTrue(resumeAll(spool).isEmpty());
+        spool.close();
+    }
+}
@@ -0,0 +1,68 @@
+package cn.jystudio.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PrinterResponseParserTest {
+    private final PrinterResponseParser mParser = new PrinterResponseParser();
+
+    private static ByteRing ring(int... bytes) {
+        ByteRing ring = new ByteRing(64);
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) data[i] = (byte) bytes[i];
+        ring.write(data, 0, data.length);
+        return ring;
+    }
+
+    @Test
+    public void needsBytes() {
+        assertNull(mParser.next(ring(), PrinterResponse.TYPE_UNKNOWN));
+    }
+
+    @Test
+    public void readsARealtimeStatusByte() {
+        ByteRing in = ring(0x12, 0x16);
+        PrinterResponse response = mParser.next(in, PrinterResponse.TYPE_REALTIME_STATUS);
+        assertEquals(PrinterResponse.TYPE_REALTIME_STATUS, response.getType());
+        assertEquals(0x12, response.getStatus());
+        assertEquals(1, in.size());
+    }
+
+    @Test
+    public void readsAWholeAutoStatusBlock() {
+        ByteRing in = ring(0x10, 0x00);
+        assertNull(mParser.next(in, PrinterResponse.TYPE_UNKNOWN));
+        in.write(new byte[]{0x00, 0x0f}, 0, 2);
+        PrinterResponse response = mParser.next(in, PrinterResponse.TYPE_UNKNOWN);
+        assertEquals(PrinterResponse.TYPE_AUTO_STATUS, response.getType());
+        assertArrayEquals(new byte[]{0x10, 0x00, 0x00, 0x0f}, response.getData());
+        assertEquals(0, in.size());
+    }
+
+    @Test
+    public void takesAnyByteWhenAStatusIsExpected() {
+        PrinterResponse response = mParser.next(ring(0x01), PrinterResponse.TYPE_REALTIME_STATUS);
+        assertEquals(PrinterResponse.TYPE_REALTIME_STATUS, response.getType());
+        assertEquals(0x01, response.getStatus());
+    }
+
+    @Test
+    public void reportsAStrayByteAsUnknown() {
+        PrinterResponse response = mParser.next(ring(0x01), PrinterResponse.TYPE_UNKNOWN);
+        assertEquals(PrinterResponse.TYPE_UNKNOWN, response.getType());
+    }
+
+    @Test
+    public void readsTextUpToCarriageReturn() {
+        ByteRing in = ring('O', 'K');
+        assertNull(mParser.next(in, PrinterResponse.TYPE_TEXT));
+        in.write(new byte[]{0x0d, 0x0a, 'X'}, 0, 3);
+        PrinterResponse response = mParser.next(in, PrinterResponse.TYPE_TEXT);
+        assertEquals(PrinterResponse.TYPE_TEXT, response.getType());
+        assertEquals("OK", response.getText());
+        assertEquals(1, in.size());
+    }
+}
@@ -0,0 +1,88 @@
+package cn.jystudio.bluetooth;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueTest {
+    private static WriteJob job(int priority) {
+        WriteJob job = new WriteJob(new byte[]{1});
+        job.setPriority(priority);
+        return job;
+    }
+
+    @Test
+    public void keepsOrderWithinALane() {
+        WriteQueue queue = new WriteQueue(8);
+        WriteJob first = job(PrintJob.PRIORITY_NORMAL);
+        WriteJob second = job(PrintJob.PRIORITY_NORMAL);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void drainsHighPriorityFirst() {
+        WriteQueue queue = new WriteQueue(8);
+        WriteJob normal = job(PrintJob.PRIORITY_NORMAL);
+        WriteJob high = job(PrintJob.PRIORITY_HIGH);
+        queue.offer(normal);
+        queue.offer(high);
+        assertSame(high, queue.poll());
+        assertSame(normal, queue.poll());
+    }
+
+    @Test
+    public void rejectsOnceFull() {
+        WriteQueue queue = new WriteQueue(2);
+        assertTrue(queue.offer(job(PrintJob.PRIORITY_NORMAL)));
+        assertTrue(queue.offer(job(PrintJob.PRIORITY_HIGH)));
+        assertFalse(queue.offer(job(PrintJob.PRIORITY_NORMAL)));
+        assertEquals(2, queue.size());
+        queue.poll();
+        assertTrue(queue.offer(job(PrintJob.PRIORITY_NORMAL)));
+    }
+
+    @Test
+    public void rejectsOnceClosed() {
+        WriteQueue queue = new WriteQueue(8);
+        queue.close();
+        assertFalse(queue.offer(job(PrintJob.PRIORITY_NORMAL)));
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void pollTimesOut() {
+        WriteQueue queue = new WriteQueue(8);
+        long start = System.nanoTime();
+        assertNull(queue.poll(TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void takeWakesUpForAProducer() throws InterruptedException {
+        final WriteQueue queue = new WriteQueue(8);
+        final WriteJob job = job(PrintJob.PRIORITY_NORMAL);
+        final WriteJob[] taken = new WriteJob[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = queue.take();
+            }
+        });
+        consumer.start();
+        Thread.sleep(20);
+        queue.offer(job);
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertSame(job, taken[0]);
+    }
+}
@@ -0,0 +1,68 @@
+package cn.jystudio.bluetooth.escpos;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GraphicsStoreTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private GraphicsStore store() {
+        return new GraphicsStore(new File(mFolder.getRoot(), "graphics"));
+    }
+
+    @Test
+    public void padsLegacyImagesToWholeColumnBytes() {
+        GraphicsStore store = store();
+        // 16 dots wide, 10 rows, all black
+        byte[] raster = new byte[2 * 10];
+        Arrays.fill(raster, (byte) 0xff);
+        store.register("logo", raster, 16, 10);
+        GraphicsStore.Graphic graphic = store.get("logo");
+
+        byte[] command = store.defineCommand(ADDRESS, graphic, GraphicsStore.LEGACY);
+        // FS q 1, xL xH yL yH, then 16 columns of 2 bytes
+        assertEquals(3 + 4 + 16 * 2, command.length);
+        assertEquals(28, command[0]);
+        assertEquals(113, command[1]);
+        assertEquals(1, command[2]);
+        assertEquals(2, command[3]);
+        assertEquals(0, command[4]);
+        assertEquals(2, command[5]);
+        assertEquals(0, command[6]);
+        for (int column = 0; column < 16; column++) {
+            // rows 0 to 7 black, then rows 8 and 9 black and the 6 padding rows white
+            assertEquals((byte) 0xff, command[7 + column * 2]);
+            assertEquals((byte) 0xc0, command[7 + column * 2 + 1]);
+        }
+    }
+
+    @Test
+    public void leavesGraphicsRowsUnpadded() {
+        GraphicsStore store = store();
+        store.register("logo", new byte[2 * 10], 16, 10);
+        byte[] command = store.defineCommand(ADDRESS, store.get("logo"), GraphicsStore.NV);
+        // GS ( L pL pH m fn a kc1 kc2 b xL xH yL yH c, then the rows as given
+        assertEquals(5 + 11 + 2 * 10, command.length);
+        assertEquals(10, command[5 + 8]);
+    }
+
+    @Test
+    public void definesTheLegacySetOnlyUntilThePrinterTookIt() {
+        GraphicsStore store = store();
+        store.register("logo", new byte[2 * 10], 16, 10);
+        GraphicsStore.Graphic graphic = store.get("logo");
+        String version = store.definitionVersion(graphic, GraphicsStore.LEGACY);
+        store.defined(ADDRESS, graphic, GraphicsStore.LEGACY, version);
+        assertNull(store.defineCommand(ADDRESS, graphic, GraphicsStore.LEGACY));
+    }
+}
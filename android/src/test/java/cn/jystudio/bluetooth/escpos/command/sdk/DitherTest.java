@@ -0,0 +1,153 @@
+package cn.jystudio.bluetooth.escpos.command.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DitherTest {
+    private static final int WIDTH = 16;
+    private static final int ROWS = 8;
+
+    /**
+     * A horizontal ramp from black to white, the same on every row.
+     */
+    private static int[][] ramp() {
+        int[][] image = new int[ROWS][WIDTH];
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image[y][x] = x * 255 / (WIDTH - 1);
+            }
+        }
+        return image;
+    }
+
+    private static int[][] dither(int type, int[][] image) {
+        Dither dither = new Dither(type, WIDTH);
+        int[][] out = new int[ROWS][];
+        for (int y = 0; y < ROWS; y++) {
+            out[y] = image[y].clone();
+            dither.apply(out[y], WIDTH, y);
+        }
+        return out;
+    }
+
+    /**
+     * Textbook Floyd-Steinberg over the whole image at once, each share rounded on its own.
+     */
+    private static int[][] floydSteinberg(int[][] image) {
+        int[][] v = new int[ROWS + 1][WIDTH + 2];
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < WIDTH; x++) v[y][x + 1] = image[y][x];
+        }
+        int[][] out = new int[ROWS][WIDTH];
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int old = v[y][x + 1];
+                out[y][x] = old < 128 ? 0 : 255;
+                int e = old - out[y][x];
+                if (x + 1 < WIDTH) v[y][x + 2] += e * 7 / 16;
+                if (x > 0) v[y + 1][x] += e * 3 / 16;
+                v[y + 1][x + 1] += e * 5 / 16;
+                if (x + 1 < WIDTH) v[y + 1][x + 2] += e / 16;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Textbook Atkinson over the whole image at once.
+     */
+    private static int[][] atkinson(int[][] image) {
+        int[][] v = new int[ROWS + 2][WIDTH + 4];
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < WIDTH; x++) v[y][x + 1] = image[y][x];
+        }
+        int[][] out = new int[ROWS][WIDTH];
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int old = v[y][x + 1];
+                out[y][x] = old < 128 ? 0 : 255;
+                int e = (old - out[y][x]) / 8;
+                if (x + 1 < WIDTH) v[y][x + 2] += e;
+                if (x + 2 < WIDTH) v[y][x + 3] += e;
+                if (x > 0) v[y + 1][x] += e;
+                v[y + 1][x + 1] += e;
+                if (x + 1 < WIDTH) v[y + 1][x + 2] += e;
+                v[y + 2][x + 1] += e;
+            }
+        }
+        return out;
+    }
+
+    @Test
+    public void carriesFloydSteinbergErrorIntoTheNextRow() {
+        // 100 goes black and passes 5/16 of its error down, 3/16 of the next pixel's white error cancels part of it
+        Dither dither = new Dither(Dither.FLOYD_STEINBERG, 2);
+        int[] first = {100, 100};
+        dither.apply(first, 2, 0);
+        assertArrayEquals(new int[]{0, 255}, first);
+        // pixel 0: 100 + 31 - 21 = 110, black; pixel 1: 100 + 48 right + 6 - 35 = 119, black
+        int[] second = {100, 100};
+        dither.apply(second, 2, 1);
+        assertArrayEquals(new int[]{0, 0}, second);
+    }
+
+    @Test
+    public void floydSteinbergMatchesTheWholeImageAlgorithm() {
+        int[][] image = ramp();
+        assertArrayEquals(floydSteinberg(image), dither(Dither.FLOYD_STEINBERG, image));
+    }
+
+    @Test
+    public void atkinsonMatchesTheWholeImageAlgorithm() {
+        int[][] image = ramp();
+        assertArrayEquals(atkinson(image), dither(Dither.ATKINSON, image));
+    }
+
+    @Test
+    public void diffusionKeepsTheGrayLevelOfTheRamp() {
+        int[][] out = dither(Dither.FLOYD_STEINBERG, ramp());
+        int white = 0;
+        for (int[] row : out) {
+            for (int v : row) {
+                if (v == 255) white++;
+            }
+        }
+        // the ramp averages half gray, so about half the dots end up white
+        assertEquals(WIDTH * ROWS / 2, white, WIDTH / 2);
+    }
+
+    @Test
+    public void resetForgetsTheCarriedError() {
+        Dither dither = new Dither(Dither.FLOYD_STEINBERG, WIDTH);
+        int[][] image = ramp();
+        int[] first = image[0].clone();
+        dither.apply(first, WIDTH, 0);
+        dither.apply(image[1].clone(), WIDTH, 1);
+        dither.reset();
+        int[] again = image[0].clone();
+        dither.apply(again, WIDTH, 2);
+        assertArrayEquals(first, again);
+    }
+
+    @Test
+    public void bayerDependsOnlyOnThePosition() {
+        Dither dither = new Dither(Dither.BAYER, WIDTH);
+        assertFalse(dither.diffuses());
+        int[] row = ramp()[0];
+        int[] at3 = row.clone();
+        dither.apply(at3, WIDTH, 3);
+        int[] at19 = row.clone();
+        dither.apply(at19, WIDTH, 19);
+        assertArrayEquals(at3, at19);
+        assertTrue(new Dither(Dither.ATKINSON, WIDTH).diffuses());
+    }
+
+    @Test
+    public void unknownTypesThreshold() {
+        assertEquals(Dither.THRESHOLD, new Dither(7, WIDTH).type());
+    }
+}
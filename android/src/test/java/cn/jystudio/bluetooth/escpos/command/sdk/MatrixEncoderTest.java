@@ -0,0 +1,119 @@
+package cn.jystudio.bluetooth.escpos.command.sdk;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.WriterException;
+import com.google.zxing.aztec.AztecWriter;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.datamatrix.DataMatrixWriter;
+import com.google.zxing.pdf417.PDF417Writer;
+import com.google.zxing.qrcode.QRCodeWriter;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Hashtable;
+
+import static org.junit.Assert.assertEquals;
+
+public class MatrixEncoderTest {
+    private static final String CONTENT = "https://example.com/receipt/2048?n=17";
+    private static final int WIDTH = 200;
+
+    /**
+     * The symbol the way the printer module asks ZXing for it: modules only, no margin.
+     */
+    private static BitMatrix symbol(BarcodeFormat format) throws WriterException {
+        Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
+        hints.put(EncodeHintType.MARGIN, 0);
+        switch (format) {
+            case PDF_417:
+                hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+                return new PDF417Writer().encode(CONTENT, format, 0, 0, hints);
+            case DATA_MATRIX:
+                return new DataMatrixWriter().encode(CONTENT, format, 0, 0, hints);
+            case AZTEC:
+                hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+                return new AztecWriter().encode(CONTENT, format, 0, 0, hints);
+            default:
+                hints.put(EncodeHintType.CHARACTER_SET, "utf-8");
+                return new QRCodeWriter().encode(CONTENT, format, 0, 0, hints);
+        }
+    }
+
+    /**
+     * Read the packed rows back the way a scanner would see the printout.
+     */
+    private static Result read(MatrixEncoder encoder, BarcodeFormat format) throws NotFoundException {
+        int width = encoder.getBytesPerLine() * 8;
+        int rows = encoder.getRows();
+        byte[] bits = encoder.getBits();
+        int[] pixels = new int[width * rows];
+        for (int i = 0; i < pixels.length; i++) {
+            boolean black = (bits[i >> 3] & (0x80 >> (i & 7))) != 0;
+            pixels[i] = black ? 0xff000000 : 0xffffffff;
+        }
+        Hashtable<DecodeHintType, Object> hints = new Hashtable<>();
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(format));
+        hints.put(DecodeHintType.PURE_BARCODE, Boolean.TRUE);
+        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(new RGBLuminanceSource(width, rows, pixels)));
+        return new MultiFormatReader().decode(bitmap, hints);
+    }
+
+    private static void roundTrip(BarcodeFormat format, int quietZone) throws Exception {
+        BitMatrix matrix = symbol(format);
+        MatrixEncoder encoder = new MatrixEncoder(matrix, WIDTH, quietZone);
+        assertEquals(WIDTH / 8, encoder.getBytesPerLine());
+        assertEquals((matrix.getHeight() + 2 * quietZone) * encoder.getModuleSize(), encoder.getRows());
+        Result result = read(encoder, format);
+        assertEquals(format, result.getBarcodeFormat());
+        assertEquals(CONTENT, result.getText());
+    }
+
+    @Test
+    public void qrCodeReadsBack() throws Exception {
+        roundTrip(BarcodeFormat.QR_CODE, 4);
+    }
+
+    @Test
+    public void pdf417ReadsBack() throws Exception {
+        roundTrip(BarcodeFormat.PDF_417, 2);
+    }
+
+    @Test
+    public void dataMatrixReadsBack() throws Exception {
+        roundTrip(BarcodeFormat.DATA_MATRIX, 1);
+    }
+
+    @Test
+    public void aztecReadsBack() throws Exception {
+        roundTrip(BarcodeFormat.AZTEC, 1);
+    }
+
+    @Test
+    public void modulesAreWholeDotSquaresCenteredInTheWidth() throws Exception {
+        BitMatrix matrix = new BitMatrix(3, 3);
+        matrix.set(0, 0);
+        matrix.set(2, 2);
+        // 5 modules with the quiet zone into 24 dots: 4 dots each, 2 dots left over on either side
+        MatrixEncoder encoder = new MatrixEncoder(matrix, 24, 1);
+        assertEquals(4, encoder.getModuleSize());
+        assertEquals(3, encoder.getBytesPerLine());
+        assertEquals(20, encoder.getRows());
+        byte[] bits = encoder.getBits();
+        for (int row = 0; row < 20; row++) {
+            int top = row / 4;
+            // module (0, 0) spans dots 6 to 9, module (2, 2) dots 14 to 17
+            int expected = top == 1 ? 0x03c000 : top == 3 ? 0x0003c0 : 0;
+            int actual = (bits[row * 3] & 0xff) << 16 | (bits[row * 3 + 1] & 0xff) << 8 | bits[row * 3 + 2] & 0xff;
+            assertEquals("row " + row, expected, actual);
+        }
+        assertEquals(3 * 20, bits.length);
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Encodes the same picture with every dithering engine at 58 mm and 80 mm
+ * widths and reports the average encoding time and the bytes it came to.
+ * Nothing is sent to the printer.
+ *
+ * Working memory per image, besides the output band: one int row for every
+ * engine, plus one int error row for FLOYD_STEINBERG and two for ATKINSON.
+ */
+
+import {BluetoothEscposPrinter} from "react-native-bluetooth-escpos-printer";
+
+export default async function ditherBenchmark(base64Image, repeat = 10) {
+    let results = [];
+    for (let width of [BluetoothEscposPrinter.width58, BluetoothEscposPrinter.width80]) {
+        BluetoothEscposPrinter.setWidth(width);
+        for (let name of Object.keys(BluetoothEscposPrinter.DITHER)) {
+            let dither = BluetoothEscposPrinter.DITHER[name];
+            let {ms, bytes} = await BluetoothEscposPrinter.measureRaster(base64Image, {width, dither, repeat});
+            results.push({width, dither: name, ms, bytes});
+        }
+    }
+    return results;
+}
@@ -0,0 +1,55 @@
+/**
+ * Prints the same picture once per raster framing and reports what each one
+ * put on the wire and how long the job took to go out.
+ *
+ * Without an address it runs against the loopback printer, which drains at
+ * bytesPerSecond: times there only reflect the byte count. Pass the address of
+ * a connected printer to also see how the printer itself copes with each framing.
+ */
+
+import {DeviceEventEmitter} from 'react-native';
+import {BluetoothManager, BluetoothEscposPrinter} from "react-native-bluetooth-escpos-printer";
+
+const MODES = [
+    ['lines', BluetoothEscposPrinter.RASTER.LINES],
+    ['block', BluetoothEscposPrinter.RASTER.BLOCK],
+    ['graphics', BluetoothEscposPrinter.RASTER.GRAPHICS]
+];
+
+function jobDone(jobId) {
+    return new Promise((resolve) => {
+        let subscription = DeviceEventEmitter.addListener(BluetoothManager.EVENT_JOB_PROGRESS, (rsp) => {
+            if (rsp.jobId === jobId && rsp.state >= BluetoothEscposPrinter.JOB_STATE.DONE) {
+                subscription.remove();
+                resolve(rsp);
+            }
+        });
+    });
+}
+
+export default async function rasterBenchmark(base64Image, options = {}) {
+    let {address = null, width = 576, rasterRows = 24, bytesPerSecond = 11000} = options;
+    let loopback = !address;
+    if (loopback) {
+        await BluetoothManager.connectLoopback({bytesPerSecond});
+        address = 'loopback';
+    }
+    BluetoothEscposPrinter.setTarget(address);
+    let results = [];
+    for (let [name, raster] of MODES) {
+        await BluetoothEscposPrinter.setPrinterProfile(address, {raster, rasterRows});
+        if (loopback) await BluetoothManager.getLoopbackStats();
+        let started = Date.now();
+        let jobId = await BluetoothEscposPrinter.beginJob({});
+        BluetoothEscposPrinter.printPic(base64Image, {width});
+        let done = jobDone(jobId);
+        await BluetoothEscposPrinter.commitJob();
+        let rsp = await done;
+        let result = {mode: name, state: rsp.state, bytes: rsp.total, ms: Date.now() - started};
+        if (loopback) result.writes = (await BluetoothManager.getLoopbackStats()).writes;
+        results.push(result);
+    }
+    await BluetoothEscposPrinter.setPrinterProfile(address, null);
+    BluetoothEscposPrinter.setTarget(null);
+    return results;
+}
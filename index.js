@@ -114,6 +114,13 @@ BluetoothTscPrinter.READABLE={
   EANBLE:1
 };
 
+BluetoothManager.WIRE_LOG = {
+    OFF: 0,
+    BYTES: 1,
+    HEX_SAMPLED: 2,
+    FULL: 3
+};
+
 BluetoothEscposPrinter.ERROR_CORRECTION = {
     L:1,
     M:0,
@@ -141,6 +148,41 @@ BluetoothEscposPrinter.ALIGN={
     CENTER:1,
     RIGHT:2
 };
+BluetoothEscposPrinter.PRIORITY={
+    HIGH:0,
+    NORMAL:1
+};
+BluetoothEscposPrinter.RASTER={
+    LINES:0,
+    BLOCK:1,
+    GRAPHICS:2
+};
+BluetoothEscposPrinter.DITHER={
+    THRESHOLD:0,
+    FLOYD_STEINBERG:1,
+    ATKINSON:2,
+    BAYER:3
+};
+BluetoothEscposPrinter.GRAPHICS_STORE={
+    NV:0,
+    DOWNLOAD:1,
+    LEGACY:2
+};
+BluetoothEscposPrinter.SYMBOL={
+    QR:0,
+    PDF417:1,
+    DATA_MATRIX:2,
+    AZTEC:3
+};
+BluetoothEscposPrinter.JOB_STATE={
+    OPEN:0,
+    QUEUED:1,
+    PRINTING:2,
+    DONE:3,
+    CANCELLED:4,
+    EXPIRED:5,
+    FAILED:6
+};
 
  module.exports ={
     BluetoothManager,BluetoothEscposPrinter, BluetoothTscPrinter };